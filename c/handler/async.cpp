@@ -3,63 +3,127 @@
  */
  
 #include <purple.h>
+#include <mutex>
+#include <unordered_map>
+#include <vector>
 #include "../purple_compat.h"
 #include "async.hpp"
 
-gboolean
-signal_check_connection_existance(PurpleConnection *pc) {
-    int connection_exists = 0;
-    {
-        GList * connection = purple_connections_get_connecting();
-        while (connection != NULL && connection_exists == 0) {
-            connection_exists = connection->data == pc;
-            connection = connection->next;
+/*
+ * Registry of live connections and the messages pending for them.
+ * Accessed from the main thread as well as Java threads, guarded by registry_mutex.
+ */
+struct PurpleSignalPendingMessages {
+    std::vector<PurpleSignalMessage *> messages;
+    guint timeout_handle = 0;
+};
+static std::unordered_map<uintptr_t, PurpleSignalPendingMessages> registry;
+static std::mutex registry_mutex;
+
+static gboolean
+signal_is_registered(uintptr_t pc) {
+    std::lock_guard<std::mutex> lock(registry_mutex);
+    return registry.find(pc) != registry.end();
+}
+
+void
+signal_register_connection(PurpleConnection *pc) {
+    std::lock_guard<std::mutex> lock(registry_mutex);
+    registry[(uintptr_t)pc];
+}
+
+/*
+ * Removes the connection from the registry.
+ * Drops all messages still pending for it.
+ * Must be called from the main thread.
+ */
+void
+signal_unregister_connection(PurpleConnection *pc) {
+    std::lock_guard<std::mutex> lock(registry_mutex);
+    auto it = registry.find((uintptr_t)pc);
+    if (it != registry.end()) {
+        if (it->second.timeout_handle != 0) {
+            purple_timeout_remove(it->second.timeout_handle);
         }
-    }
-    {
-        GList * connection = purple_connections_get_all();
-        while (connection != NULL && connection_exists == 0) {
-            connection_exists = connection->data == pc;
-            connection = connection->next;
+        for (PurpleSignalMessage *psm : it->second.messages) {
+            delete psm;
         }
+        registry.erase(it);
     }
-    return connection_exists;
 }
 
 /*
- * Handler for a message. Called inside of the GTK eventloop.
+ * Handler for all messages pending for one connection. Called inside of the GTK eventloop.
  *
  * @return Whether to execute again. Always FALSE.
  */
 gboolean
 signal_handle_message_mainthread(gpointer data)
 {
-    PurpleSignalMessage *psm = (PurpleSignalMessage *)data;
-    PurpleConnection *pc = (PurpleConnection *)psm->pc;
-    int connection_exists = signal_check_connection_existance(pc);
-    if (connection_exists == 0) {
-        purple_debug_info(
-            "signal", "Not handling message for non-existant connection %p.\n", pc
-        );
-    } else {
-        try {
-            (*psm->function)(pc);
-        } catch (std::exception & e) {
-            purple_connection_error(pc, PURPLE_CONNECTION_ERROR_OTHER_ERROR, e.what());
+    uintptr_t pc = (uintptr_t)data;
+    std::vector<PurpleSignalMessage *> messages;
+    {
+        std::lock_guard<std::mutex> lock(registry_mutex);
+        auto it = registry.find(pc);
+        if (it != registry.end()) {
+            messages.swap(it->second.messages);
+            it->second.timeout_handle = 0;
         }
     }
-    delete psm;
+    for (PurpleSignalMessage *psm : messages) {
+        // a message handler may have unregistered the connection
+        if (signal_is_registered(pc)) {
+            try {
+                (*psm->function)((PurpleConnection *)pc);
+            } catch (std::exception & e) {
+                purple_connection_error((PurpleConnection *)pc, PURPLE_CONNECTION_ERROR_OTHER_ERROR, e.what());
+            }
+        }
+        delete psm;
+    }
     return FALSE;
 }
 
+/*
+ * Handles the messages pending for the connection right away instead of waiting for the call-back.
+ * Must be called from the main thread.
+ */
+void
+signal_handle_pending_messages(PurpleConnection *pc) {
+    {
+        std::lock_guard<std::mutex> lock(registry_mutex);
+        auto it = registry.find((uintptr_t)pc);
+        if (it == registry.end() || it->second.timeout_handle == 0) {
+            return; // nothing pending
+        }
+        purple_timeout_remove(it->second.timeout_handle);
+    }
+    signal_handle_message_mainthread(pc);
+}
+
 /*
  * Handler for a message received by signal.
  * Called by the JavaVM (outside of the GTK eventloop).
+ * Messages are queued per connection. There is at most one pending call-back per connection.
  */
 void
 signal_handle_message_async(PurpleSignalMessage *psm)
 {
-    purple_timeout_add(0, signal_handle_message_mainthread, (void*)psm); // yes, this is indeed neccessary – we checked
+    {
+        std::lock_guard<std::mutex> lock(registry_mutex);
+        auto it = registry.find(psm->pc);
+        if (it != registry.end()) {
+            it->second.messages.push_back(psm);
+            if (it->second.timeout_handle == 0) {
+                it->second.timeout_handle = purple_timeout_add(0, signal_handle_message_mainthread, (void *)psm->pc); // yes, this is indeed neccessary – we checked
+            }
+            return;
+        }
+    }
+    purple_debug_info(
+        "signal", "Not handling message for non-existant connection %p.\n", (void *)psm->pc
+    );
+    delete psm;
 }
 
 void signal_debug(PurpleDebugLevel level, const std::string & message) {
@@ -19,5 +19,8 @@ class PurpleSignalMessage {
     PurpleSignalMessage(uintptr_t pc, std::unique_ptr<PurpleSignalConnectionFunction> & function);
 };
 
+void signal_register_connection(PurpleConnection *pc);
+void signal_unregister_connection(PurpleConnection *pc);
+void signal_handle_pending_messages(PurpleConnection *pc);
 void signal_handle_message_async(PurpleSignalMessage *psm);
 void signal_debug(PurpleDebugLevel level, const std::string & message);
@@ -1,5 +1,7 @@
+#include <cstring>
 #include "../purple_compat.h"
 #include "../libsignal.hpp"
+#include "message.hpp"
 
 PurpleConversation *signal_find_conversation(const char *username, PurpleAccount *account) {
     PurpleIMConversation *imconv = purple_conversations_find_im_with_account(username, account);
@@ -14,11 +16,54 @@ PurpleConversation *signal_find_conversation(const char *username, PurpleAccount
     return conv;
 }
 
+/*
+ * Looks up the conversation in the connection's cache first.
+ * Entries are removed by signal_forget_conversation when libpurple destroys the conversation.
+ */
+PurpleConversation *signal_find_conversation_cached(PurpleSignalConnection *sa, const std::string & chat) {
+    auto cached = sa->conversations.find(chat);
+    if (cached != sa->conversations.end()) {
+        return cached->second;
+    }
+    PurpleConversation *conv = signal_find_conversation(chat.c_str(), sa->account);
+    if (conv != NULL) {
+        sa->conversations[chat] = conv;
+    }
+    return conv;
+}
+
+/*
+ * Handler for libpurple's "deleting-conversation" signal.
+ */
+void
+signal_forget_conversation(PurpleConversation *conv, gpointer data)
+{
+    PurpleAccount *account = purple_conversation_get_account(conv);
+    if (account == NULL || strcmp(purple_account_get_protocol_id(account), SIGNAL_PLUGIN_ID) != 0) {
+        return;
+    }
+    PurpleConnection *pc = purple_account_get_connection(account);
+    if (pc == NULL) {
+        return;
+    }
+    PurpleSignalConnection *sa = static_cast<PurpleSignalConnection*>(purple_connection_get_protocol_data(pc));
+    if (sa == NULL) {
+        return;
+    }
+    for (auto it = sa->conversations.begin(); it != sa->conversations.end(); ) {
+        if (it->second == conv) {
+            it = sa->conversations.erase(it);
+        } else {
+            ++it;
+        }
+    }
+}
+
 void
 signal_display_message(PurpleConnection *pc, const std::string & chat, const std::string & sender, const std::string & message, const long timestamp, const PurpleMessageFlags flags)
 {
     PurpleSignalConnection *sa = static_cast<PurpleSignalConnection*>(purple_connection_get_protocol_data(pc));
-    PurpleConversation *conv = signal_find_conversation(chat.c_str(), sa->account);
+    PurpleConversation *conv = signal_find_conversation_cached(sa, chat);
     purple_conversation_write(conv, sender.c_str(), message.c_str(), flags, timestamp);
 }
 
@@ -36,3 +81,59 @@ signal_process_message(PurpleConnection *pc, const std::string & chat, const std
     }
     signal_display_message(pc, chat, sender, message, t, flags);
 }
+
+/*
+ * Interprets a batch of messages in one go.
+ */
+void
+signal_process_messages(PurpleConnection *pc, const std::vector<PurpleSignalMessageRecord> & records)
+{
+    for (const PurpleSignalMessageRecord & record : records) {
+        signal_process_message(pc, record.chat, record.sender, record.message, record.timestamp, record.flags);
+    }
+}
+
+/*
+ * Shows whether the other party is typing. Signal clients repeat the indication while typing continues.
+ */
+void
+signal_handle_typing(PurpleConnection *pc, const std::string & chat, bool typing)
+{
+    if (typing) {
+        purple_serv_got_typing(pc, chat.c_str(), SIGNAL_TYPING_TIMEOUT_SECONDS, PURPLE_IM_TYPING);
+    } else {
+        purple_serv_got_typing_stopped(pc, chat.c_str());
+    }
+}
+
+/*
+ * Notes in the conversation how far the messages sent have been delivered or read.
+ * Conversations are not opened just for this.
+ */
+void
+signal_handle_receipt(PurpleConnection *pc, const std::string & chat, int type, const long timestamp)
+{
+    PurpleSignalConnection *sa = static_cast<PurpleSignalConnection*>(purple_connection_get_protocol_data(pc));
+    if (purple_conversations_find_im_with_account(chat.c_str(), sa->account) == NULL) {
+        return;
+    }
+    time_t t = timestamp / 1000;
+    std::string what = std::string("[Messages up to ") + purple_time_format(localtime(&t)) + " have been " 
+        + (type == SIGNAL_RECEIPT_READ ? "read" : "delivered") + ".]";
+    signal_process_message(pc, chat, chat, what, 0, static_cast<PurpleMessageFlags>(PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG));
+}
+
+/*
+ * Reports the outcome of sending a message. Failures are shown in the conversation.
+ */
+void
+signal_handle_send_result(PurpleConnection *pc, const std::string & who, bool success, const std::string & error)
+{
+    if (success) {
+        purple_debug_info("signal", "Message to %s has been sent.\n", who.c_str());
+    } else {
+        PurpleSignalConnection *sa = static_cast<PurpleSignalConnection*>(purple_connection_get_protocol_data(pc));
+        std::string what = "Message could not be sent: " + error;
+        purple_conversation_present_error(who.c_str(), sa->account, what.c_str());
+    }
+}
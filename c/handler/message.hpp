@@ -1,5 +1,24 @@
 #pragma once
 
 #include <purple.h>
+#include <string>
+#include <vector>
 
-void signal_process_message(PurpleConnection *pc, const std::string & chat, const std::string & sender, const std::string & message, const long timestamp, const PurpleMessageFlags flags);
\ No newline at end of file
+#define SIGNAL_TYPING_TIMEOUT_SECONDS 15 // Signal clients repeat typing messages every few seconds
+#define SIGNAL_RECEIPT_DELIVERY 1 // as in StatusThrottle
+#define SIGNAL_RECEIPT_READ 2
+
+struct PurpleSignalMessageRecord {
+    std::string chat;
+    std::string sender;
+    std::string message;
+    long timestamp;
+    PurpleMessageFlags flags;
+};
+
+void signal_process_message(PurpleConnection *pc, const std::string & chat, const std::string & sender, const std::string & message, const long timestamp, const PurpleMessageFlags flags);
+void signal_process_messages(PurpleConnection *pc, const std::vector<PurpleSignalMessageRecord> & records);
+void signal_handle_typing(PurpleConnection *pc, const std::string & chat, bool typing);
+void signal_handle_receipt(PurpleConnection *pc, const std::string & chat, int type, const long timestamp);
+void signal_handle_send_result(PurpleConnection *pc, const std::string & who, bool success, const std::string & error);
+void signal_forget_conversation(PurpleConversation *conv, gpointer data);
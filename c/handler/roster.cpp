@@ -0,0 +1,43 @@
+#include "../purple_compat.h"
+#include "../libsignal.hpp"
+#include "roster.hpp"
+
+/*
+ * Adds, renames or removes buddies as synchronized from the primary device.
+ * Only changes are handed over, so an unchanged roster does not touch the buddy list at all.
+ * Afterwards, Java may save the roster as applied.
+ */
+void
+signal_update_roster(PurpleConnection *pc, const std::vector<PurpleSignalRosterChange> & changes, long generation)
+{
+    PurpleAccount *account = purple_connection_get_account(pc);
+    for (const PurpleSignalRosterChange & change : changes) {
+        PurpleBuddy *buddy = purple_blist_find_buddy(account, change.name.c_str());
+        if (change.action == SIGNAL_ROSTER_REMOVE) {
+            if (buddy != NULL) {
+                purple_blist_remove_buddy(buddy);
+            }
+        } else if (change.action == SIGNAL_ROSTER_SET) {
+            if (buddy == NULL) {
+                PurpleGroup *group = purple_blist_find_group(change.group.c_str());
+                if (group == NULL) {
+                    group = purple_group_new(change.group.c_str());
+                    purple_blist_add_group(group, NULL);
+                }
+                buddy = purple_buddy_new(account, change.name.c_str(), NULL);
+                purple_blist_add_buddy(buddy, NULL, group, NULL);
+            }
+            if (!change.alias.empty()) {
+                purple_serv_got_alias(pc, change.name.c_str(), change.alias.c_str());
+            }
+        }
+    }
+    purple_debug_info("signal", "Applied %zu roster changes.\n", changes.size());
+    PurpleSignalConnection *sa = static_cast<PurpleSignalConnection *>(purple_connection_get_protocol_data(pc));
+    try {
+        sa->roster_applied(generation);
+    } catch (std::exception & e) {
+        // the changes are handed over again next time
+        purple_debug_error("signal", "Unable to confirm roster changes: %s\n", e.what());
+    }
+}
@@ -0,0 +1,17 @@
+#pragma once
+
+#include <purple.h>
+#include <string>
+#include <vector>
+
+#define SIGNAL_ROSTER_REMOVE 0 // as in RosterSync
+#define SIGNAL_ROSTER_SET 1
+
+struct PurpleSignalRosterChange {
+    int action;
+    std::string group;
+    std::string name;
+    std::string alias;
+};
+
+void signal_update_roster(PurpleConnection *pc, const std::vector<PurpleSignalRosterChange> & changes, long generation);
@@ -8,12 +8,31 @@
 #include "utils.hpp"
 
 void PurpleSignalConnection::login(const char* username, const std::string & settings_dir) {
+    gint64 start = g_get_monotonic_time();
     TypedJNIClass psclass = ps.jvm->find_class("de/hehoe/purple_signal/PurpleSignal");
     ps.instance = std::make_shared<TypedJNIObject>(psclass.GetConstructor<jlong,jstring,jstring>()(
         uintptr_t(connection), ps.jvm->make_jstring(username), ps.jvm->make_jstring(settings_dir)
     ));
     ps.send_message = ps.instance->GetMethod<jint(jstring,jstring)>("sendMessage");
     tjni_exception_check(ps.jvm);
+    char *timing = g_strdup_printf("Start-up timing: PurpleSignal instance %lld ms.", (long long)(g_get_monotonic_time() - start) / 1000);
+    signal_debug(PURPLE_DEBUG_INFO, timing);
+    g_free(timing);
+}
+
+void PurpleSignalConnection::roster_applied(long generation) {
+    ps.instance->GetMethod<void(jlong)>("handleRosterApplied")(generation);
+    tjni_exception_check(ps.jvm);
+}
+
+std::string PurpleSignalConnection::get_metrics() {
+    jstring jmetrics = ps.instance->GetMethod<jstring()>("getMetrics")();
+    tjni_exception_check(ps.jvm);
+    const char *metrics = ps.jvm->env->GetStringUTFChars(jmetrics, 0);
+    std::string result(metrics);
+    ps.jvm->env->ReleaseStringUTFChars(jmetrics, metrics);
+    ps.jvm->env->DeleteLocalRef(jmetrics);
+    return result;
 }
 
 int PurpleSignalConnection::close() {
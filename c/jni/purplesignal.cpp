@@ -2,11 +2,16 @@
  * Implementation PurpleSignal (Java) instance management (create JVM, create object, destroy JVM).
  */
 
+#include <sys/stat.h>
 #include "../libsignal.hpp"
 #include "../handler/async.hpp"
 #include "purplesignal.hpp"
 #include "utils.hpp"
 
+#define SIGNAL_OPTION_CLASSPATH_CACHE "classpath-cache"
+#define SIGNAL_OPTION_CLASSPATH_CACHE_DIR "classpath-cache-dir"
+#define SIGNAL_OPTION_CLASSPATH_CACHE_MTIME "classpath-cache-mtime"
+
 #if defined(__MINGW32__) || defined(_WIN32)
 #define CLASSPATH_SEPARATOR ';'
 #include <dirent.h>
@@ -79,17 +84,72 @@ char *readdir_of_jars(const char *path, const char *prefix) {
     }
 }
 
+/*
+ * Like readdir_of_jars, but re-uses the list of jars found last time.
+ * The list is stored in the account along with the directory's modification time.
+ * Adding, removing or renaming a file changes the modification time, invalidating the list.
+ */
+char *readdir_of_jars_cached(PurpleAccount *account, const char *path, const char *prefix) {
+    struct stat st;
+    if (stat(path, &st) != 0) {
+        return readdir_of_jars(path, prefix); // reports the error
+    }
+    char *mtime = g_strdup_printf("%lld", (long long)st.st_mtime);
+    char *out = NULL;
+    if (
+        strcmp(purple_account_get_string(account, SIGNAL_OPTION_CLASSPATH_CACHE_DIR, ""), path) == 0 && 
+        strcmp(purple_account_get_string(account, SIGNAL_OPTION_CLASSPATH_CACHE_MTIME, ""), mtime) == 0
+    ) {
+        signal_debug(PURPLE_DEBUG_INFO, "Using cached list of jars.");
+        out = g_strdup_printf("%s%s", prefix, purple_account_get_string(account, SIGNAL_OPTION_CLASSPATH_CACHE, ""));
+    } else {
+        // a minus as prefix tells the list of jars apart from an error message
+        char *jars = readdir_of_jars(path, "-");
+        if (jars[0] == '-') {
+            purple_account_set_string(account, SIGNAL_OPTION_CLASSPATH_CACHE, jars + 1);
+            purple_account_set_string(account, SIGNAL_OPTION_CLASSPATH_CACHE_DIR, path);
+            purple_account_set_string(account, SIGNAL_OPTION_CLASSPATH_CACHE_MTIME, mtime);
+            out = g_strdup_printf("%s%s", prefix, jars + 1);
+            g_free(jars);
+        } else {
+            out = jars;
+        }
+    }
+    g_free(mtime);
+    return out;
+}
+
+/*
+ * Whether the Java VM is Java 19 or newer. Only these know JNI version 19.
+ * Must be called before the VM is created.
+ */
+static bool java_is_at_least_19() {
+    JavaVMInitArgs probe;
+    probe.version = 0x00130000; // JNI_VERSION_19, older jni.h do not define it
+    probe.nOptions = 0;
+    probe.options = NULL;
+    probe.ignoreUnrecognized = JNI_FALSE;
+    return JNI_GetDefaultJavaVMInitArgs(&probe) == JNI_OK;
+}
+
 TypedJNIEnv * PurpleSignal::jvm = nullptr;
 
-PurpleSignal::PurpleSignal(const std::string & signal_cli_path) {
+/*
+ * Creates the Java VM unless it exists already.
+ * 
+ * This needs to happen in the main thread: The JNI environment is bound to the thread which created the VM
+ * and all calls into Java are made from the main thread.
+ */
+PurpleSignal::PurpleSignal(PurpleAccount *account, const std::string & signal_cli_path) {
     if (jvm != nullptr) {
         signal_debug(PURPLE_DEBUG_INFO, "jni pointers not null. JVM seems to be initialized already.");
     } else {
+        gint64 start = g_get_monotonic_time();
         char *ownpath = find_own_path();
         // TODO: check for spaces
         // TODO: check whether %s/purple_signal.jar is readable
         char *prefix = g_strdup_printf("-Djava.class.path=%s/purple_signal.jar", ownpath);
-        char *classpath = readdir_of_jars(signal_cli_path.c_str(), prefix);
+        char *classpath = readdir_of_jars_cached(account, signal_cli_path.c_str(), prefix);
         g_free(prefix);
         char *librarypath = g_strdup_printf("-Djava.library.path=%s", ownpath);
         g_free(ownpath);
@@ -101,7 +161,10 @@ PurpleSignal::PurpleSignal(const std::string & signal_cli_path) {
             throw std::runtime_error(classpath);
         }
 
+        gint64 classpath_done = g_get_monotonic_time();
+
         JavaVMInitArgs vm_args;
+        vm_args.ignoreUnrecognized = JNI_FALSE;
         std::vector<JavaVMOption> options;
         JavaVMOption jvmo;
         jvmo.optionString = classpath; options.push_back(jvmo);
@@ -109,13 +172,35 @@ PurpleSignal::PurpleSignal(const std::string & signal_cli_path) {
         if (purple_debug_is_enabled()) {
             jvmo.optionString = "-agentlib:jdwp=transport=dt_socket,server=y,suspend=n,address=10044"; options.push_back(jvmo); 
         }
+        char *shared_archive = NULL;
+        if (purple_account_get_bool(account, SIGNAL_OPTION_JAVA_CDS, SIGNAL_DEFAULT_JAVA_CDS)) {
+            if (java_is_at_least_19()) {
+                // class data sharing archive for purple_signal and signal-cli's classes, created and updated automatically
+                shared_archive = g_strdup_printf("-XX:SharedArchiveFile=%s/purple_signal.jsa", purple_user_dir());
+                signal_debug(PURPLE_DEBUG_INFO, shared_archive);
+                jvmo.optionString = shared_archive; options.push_back(jvmo);
+                jvmo.optionString = "-XX:+AutoCreateSharedArchive"; options.push_back(jvmo);
+            } else {
+                // older versions do not know -XX:+AutoCreateSharedArchive and may refuse to start
+                signal_debug(PURPLE_DEBUG_INFO, "Class data sharing archive needs Java 19 or newer. Not using it.");
+            }
+        }
         vm_args.options = options.data();
         vm_args.nOptions = options.size();
         vm_args.version  = JNI_VERSION_1_8;
         jvm = new TypedJNIEnv(vm_args);
         // TODO: convert to std::string
+        g_free(shared_archive);
         g_free(librarypath);
         g_free(classpath);
+        gint64 jvm_done = g_get_monotonic_time();
+        
+        char *timing = g_strdup_printf(
+            "Start-up timing: classpath %lld ms, Java VM creation %lld ms.", 
+            (long long)(classpath_done - start) / 1000, (long long)(jvm_done - classpath_done) / 1000
+        );
+        signal_debug(PURPLE_DEBUG_INFO, timing);
+        g_free(timing);
     }
 }
 
@@ -128,4 +213,4 @@ void PurpleSignal::destroy() {
     }
 }
 
-PurpleSignalConnection::PurpleSignalConnection(PurpleAccount *account, PurpleConnection *pc, const std::string & signal_lib_directory) : account(account), connection(pc), ps(signal_lib_directory) {};
+PurpleSignalConnection::PurpleSignalConnection(PurpleAccount *account, PurpleConnection *pc, const std::string & signal_lib_directory) : account(account), connection(pc), ps(account, signal_lib_directory) {};
@@ -30,8 +30,16 @@
 #define SIGNAL_DEFAULT_LIBDIR ""
 #define SIGNAL_OPTION_SETTINGS_DIR "signal-cli-settings-dir"
 #define SIGNAL_DEFAULT_SETTINGS_DIR ""
+#define SIGNAL_OPTION_TRACE_LEVEL "trace-level" // must match Trace.SETTING_KEY
+#define SIGNAL_DEFAULT_TRACE_LEVEL "off"
+#define SIGNAL_OPTION_MESSAGE_STORE "message-store" // must match MessageStore.SETTING_KEY
+#define SIGNAL_DEFAULT_MESSAGE_STORE FALSE
+#define SIGNAL_OPTION_SEND_COALESCING_DELAY "send-coalescing-delay" // must match SendPipeline.SETTING_KEY
+#define SIGNAL_DEFAULT_SEND_COALESCING_DELAY "0"
 
 #include "libsignal.hpp"
+#include "handler/message.hpp"
+#include "handler/async.hpp"
 
 extern "C" {
 
@@ -66,6 +74,7 @@ signal_login(PurpleAccount *account)
     | PURPLE_CONNECTION_NO_BGCOLOR);
     purple_connection_set_flags(pc, pc_flags);
 
+    signal_register_connection(pc);
     try {
         PurpleSignalConnection *sa = new PurpleSignalConnection(account, pc, libdir);
         purple_connection_set_protocol_data(pc, sa);
@@ -86,8 +95,15 @@ static void
 signal_close(PurpleConnection *pc)
 {
     PurpleSignalConnection *sa = (PurpleSignalConnection *)purple_connection_get_protocol_data(pc);
-    sa->close();
-    delete sa;
+    if (sa != NULL) {
+        sa->close();
+        // closing reports the messages which could not be sent any more, they must be shown before unregistering
+        signal_handle_pending_messages(pc);
+    }
+    signal_unregister_connection(pc);
+    if (sa != NULL) {
+        delete sa;
+    }
 }
 
 static GList *
@@ -138,19 +154,65 @@ signal_add_account_options(GList *account_options)
                 );
     account_options = g_list_append(account_options, option);
     
+    option = purple_account_option_bool_new(
+                "Speed up Java start-up with a class data sharing archive (Java 19+)",
+                SIGNAL_OPTION_JAVA_CDS,
+                SIGNAL_DEFAULT_JAVA_CDS
+                );
+    account_options = g_list_append(account_options, option);
+    
+    option = purple_account_option_string_new(
+                "Trace level written to stdout (off, basic, verbose)",
+                SIGNAL_OPTION_TRACE_LEVEL,
+                SIGNAL_DEFAULT_TRACE_LEVEL
+                );
+    account_options = g_list_append(account_options, option);
+    
+    option = purple_account_option_bool_new(
+                "Keep a searchable message history (stored unencrypted)",
+                SIGNAL_OPTION_MESSAGE_STORE,
+                SIGNAL_DEFAULT_MESSAGE_STORE
+                );
+    account_options = g_list_append(account_options, option);
+    
+    option = purple_account_option_string_new(
+                "Milliseconds to wait for consecutive outgoing messages to send them in one go (0 = off)",
+                SIGNAL_OPTION_SEND_COALESCING_DELAY,
+                SIGNAL_DEFAULT_SEND_COALESCING_DELAY
+                );
+    account_options = g_list_append(account_options, option);
+    
     return account_options;
 }
 
+static void
+signal_show_metrics(PurpleProtocolAction *action)
+{
+    PurpleConnection *pc = purple_protocol_action_get_connection(action);
+    PurpleSignalConnection *sa = (PurpleSignalConnection *)purple_connection_get_protocol_data(pc);
+    if (sa == NULL || sa->ps.instance == nullptr) {
+        return;
+    }
+    try {
+        std::string metrics = sa->get_metrics();
+        purple_notify_message(pc, PURPLE_NOTIFY_MSG_INFO, "Signal metrics", purple_account_get_username(sa->account), metrics.c_str(), NULL, NULL);
+    } catch (std::exception & e) {
+        purple_notify_error(pc, "Signal metrics", "Unable to collect metrics.", e.what(), purple_request_cpar_from_connection(pc));
+    }
+}
+
 static GList *
 signal_actions(PurplePlugin *plugin, gpointer context)
 {
     GList *m = NULL;
+    m = g_list_append(m, purple_protocol_action_new("Show metrics", signal_show_metrics));
     return m;
 }
 
 static gboolean
 plugin_load(PurplePlugin *plugin, GError **error)
 {
+    purple_signal_connect(purple_conversations_get_handle(), "deleting-conversation", plugin, PURPLE_CALLBACK(signal_forget_conversation), NULL);
     return TRUE;
 }
 
@@ -2,6 +2,8 @@
 
 #include <memory>
 #include <functional>
+#include <string>
+#include <unordered_map>
 #include <purple.h>
 #include "jni/purplesignal.hpp"
 
@@ -17,6 +19,7 @@ class PurpleSignalConnection {
     PurpleAccount *account;
     PurpleConnection *connection;
     PurpleSignal ps;
+    std::unordered_map<std::string, PurpleConversation *> conversations; // cache for conversation look-ups, maintained by handler/message.cpp
     
     // setup
     PurpleSignalConnection(PurpleAccount *account, PurpleConnection *pc, const std::string & signal_lib_directory);
@@ -32,4 +35,10 @@ class PurpleSignalConnection {
     
     // messaging
     int send(const char *who, const char *message);
+    
+    // buddy list
+    void roster_applied(long generation);
+    
+    // diagnostics
+    std::string get_metrics();
 };
@@ -6,11 +6,14 @@
  * The PurpleSignalConnectionFunction body may throw an exception. It is caught in the the main thread.
  */
 
+#include <cstring>
+#include <cstdint>
 #include "de_hehoe_purple_signal_PurpleSignal.h"
 #include "libsignal.hpp"
 #include "handler/async.hpp"
 #include "handler/account.hpp"
 #include "handler/message.hpp"
+#include "handler/roster.hpp"
 
 JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleQRCodeNatively(JNIEnv *env, jclass cls, jlong pc, jstring jmessage) {
     const char *message = env->GetStringUTFChars(jmessage, 0);
@@ -65,25 +68,171 @@ JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_logNatively(JNI
     env->ReleaseStringUTFChars(jmessage, message);
 }
 
-JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleMessageNatively(JNIEnv *env, jclass cls, jlong pc, jstring jchat, jstring jsender, jstring jmessage, jlong timestamp, jint flags) {
-    const char *chat = env->GetStringUTFChars(jchat, 0);
-    const char *sender = env->GetStringUTFChars(jsender, 0);
-    const char *message = env->GetStringUTFChars(jmessage, 0);
+static std::string jstring_to_string(JNIEnv *env, jstring jstr) {
+    const char *chars = env->GetStringUTFChars(jstr, 0);
+    std::string str(chars);
+    env->ReleaseStringUTFChars(jstr, chars);
+    return str;
+}
+
+/*
+ * Reads the fields of a batch encoded by MessageBatcher or RosterSync.
+ * Integers are in native byte order, strings are length-prefixed UTF-8.
+ */
+class PurpleSignalBufferReader {
+    const char *position;
+    const char *const end;
+    
+    public:
+    bool overflow = false;
+    
+    PurpleSignalBufferReader(const char *data, size_t length) : position(data), end(data + length) {}
+    
+    template<typename T> T read() {
+        T value = 0;
+        if (static_cast<size_t>(end - position) < sizeof(T)) {
+            overflow = true;
+            return value;
+        }
+        memcpy(&value, position, sizeof(T));
+        position += sizeof(T);
+        return value;
+    }
+    
+    std::string read_string() {
+        const int32_t length = read<int32_t>();
+        if (length < 0 || end - position < length) {
+            overflow = true;
+            return std::string();
+        }
+        std::string value(position, length);
+        position += length;
+        return value;
+    }
+};
+
+/*
+ * Hands over a whole batch of messages.
+ * The buffer is only valid during this call, so everything is copied.
+ * All of them are processed in one call-back within the main thread.
+ */
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleMessageBufferNatively(JNIEnv *env, jclass cls, jlong pc, jobject jbuffer, jint length) {
+    const char *data = static_cast<const char *>(env->GetDirectBufferAddress(jbuffer));
+    if (data == nullptr || length < 0 || env->GetDirectBufferCapacity(jbuffer) < length) {
+        signal_debug(PURPLE_DEBUG_ERROR, "Message buffer is not accessible. Messages have been lost.");
+        return;
+    }
+    PurpleSignalBufferReader reader(data, length);
+    const int32_t count = reader.read<int32_t>();
+    std::vector<PurpleSignalMessageRecord> records;
+    records.reserve(count > 0 ? count : 0);
+    for (int32_t i = 0; i < count && !reader.overflow; i++) {
+        const int32_t flags = reader.read<int32_t>();
+        const int64_t timestamp = reader.read<int64_t>();
+        std::string chat = reader.read_string();
+        std::string sender = reader.read_string();
+        std::string message = reader.read_string();
+        if (!reader.overflow) {
+            records.push_back(PurpleSignalMessageRecord{
+                std::move(chat), 
+                std::move(sender), 
+                std::move(message), 
+                static_cast<long>(timestamp), 
+                static_cast<PurpleMessageFlags>(flags)
+            });
+        }
+    }
+    if (reader.overflow) {
+        signal_debug(PURPLE_DEBUG_ERROR, "Message buffer ended unexpectedly. Some messages have been lost.");
+    }
+    auto do_in_main_thread = std::make_unique<PurpleSignalConnectionFunction>(
+        [records = std::move(records)] (PurpleConnection *pc) {
+            signal_process_messages(pc, records);
+        }
+    );
+    PurpleSignalMessage *psm = new PurpleSignalMessage(pc, do_in_main_thread);
+    signal_handle_message_async(psm);
+}
+
+/*
+ * Hands over the changes to the buddy list in one go.
+ * The buffer is only valid during this call, so everything is copied.
+ * Java is told the generation once the changes have been applied.
+ */
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_updateRosterNatively(JNIEnv *env, jclass cls, jlong pc, jobject jbuffer, jint length, jlong generation) {
+    const char *data = static_cast<const char *>(env->GetDirectBufferAddress(jbuffer));
+    if (data == nullptr || length < 0 || env->GetDirectBufferCapacity(jbuffer) < length) {
+        signal_debug(PURPLE_DEBUG_ERROR, "Roster buffer is not accessible. Roster changes have been lost.");
+        return;
+    }
+    PurpleSignalBufferReader reader(data, length);
+    const int32_t count = reader.read<int32_t>();
+    std::vector<PurpleSignalRosterChange> changes;
+    changes.reserve(count > 0 ? count : 0);
+    for (int32_t i = 0; i < count && !reader.overflow; i++) {
+        const int32_t action = reader.read<int32_t>();
+        std::string group = reader.read_string();
+        std::string name = reader.read_string();
+        std::string alias = reader.read_string();
+        if (!reader.overflow) {
+            changes.push_back(PurpleSignalRosterChange{
+                action, 
+                std::move(group), 
+                std::move(name), 
+                std::move(alias)
+            });
+        }
+    }
+    if (reader.overflow) {
+        signal_debug(PURPLE_DEBUG_ERROR, "Roster buffer ended unexpectedly. Some roster changes have been lost.");
+    }
+    auto do_in_main_thread = std::make_unique<PurpleSignalConnectionFunction>(
+        [changes = std::move(changes), generation] (PurpleConnection *pc) {
+            signal_update_roster(pc, changes, generation);
+        }
+    );
+    PurpleSignalMessage *psm = new PurpleSignalMessage(pc, do_in_main_thread);
+    signal_handle_message_async(psm);
+}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleTypingNatively(JNIEnv *env, jclass cls, jlong pc, jstring jchat, jboolean typing) {
     auto do_in_main_thread = std::make_unique<PurpleSignalConnectionFunction>(
         [
-            chat = std::string(chat), 
-            sender = std::string(sender), 
-            message = std::string(message), 
-            timestamp, 
-            flags = static_cast<PurpleMessageFlags>(flags)
+            chat = jstring_to_string(env, jchat), 
+            typing = static_cast<bool>(typing)
         ] (PurpleConnection *pc) {
-            signal_process_message(pc, chat, sender, message, timestamp, flags);
+            signal_handle_typing(pc, chat, typing);
+        }
+    );
+    PurpleSignalMessage *psm = new PurpleSignalMessage(pc, do_in_main_thread);
+    signal_handle_message_async(psm);
+}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleReceiptNatively(JNIEnv *env, jclass cls, jlong pc, jstring jchat, jint type, jlong timestamp) {
+    auto do_in_main_thread = std::make_unique<PurpleSignalConnectionFunction>(
+        [
+            chat = jstring_to_string(env, jchat), 
+            type = static_cast<int>(type), 
+            timestamp = static_cast<long>(timestamp)
+        ] (PurpleConnection *pc) {
+            signal_handle_receipt(pc, chat, type, timestamp);
+        }
+    );
+    PurpleSignalMessage *psm = new PurpleSignalMessage(pc, do_in_main_thread);
+    signal_handle_message_async(psm);
+}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleSendResultNatively(JNIEnv *env, jclass cls, jlong pc, jstring jwho, jboolean success, jstring jerror) {
+    auto do_in_main_thread = std::make_unique<PurpleSignalConnectionFunction>(
+        [
+            who = jstring_to_string(env, jwho), 
+            success = static_cast<bool>(success), 
+            error = jstring_to_string(env, jerror)
+        ] (PurpleConnection *pc) {
+            signal_handle_send_result(pc, who, success, error);
         }
     );
     PurpleSignalMessage *psm = new PurpleSignalMessage(pc, do_in_main_thread);
-    env->ReleaseStringUTFChars(jmessage, message);
-    env->ReleaseStringUTFChars(jchat, chat);
-    env->ReleaseStringUTFChars(jsender, sender);
     signal_handle_message_async(psm);
 }
 
@@ -96,8 +245,22 @@ JNIEXPORT jstring JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_getSettingsS
     const char *key = env->GetStringUTFChars(jkey, 0);
     const char *default_value = env->GetStringUTFChars(jdefault_value, 0);
     PurpleSignalConnection *sa = (PurpleSignalConnection *)purple_connection_get_protocol_data((PurpleConnection *)pc);
-    const char *value = purple_account_get_string(sa->account, key, default_value);
-    return env->NewStringUTF(value);
+    jstring jvalue = env->NewStringUTF(purple_account_get_string(sa->account, key, default_value));
+    env->ReleaseStringUTFChars(jkey, key);
+    env->ReleaseStringUTFChars(jdefault_value, default_value);
+    return jvalue;
+}
+
+/*
+ * Reads a boolean from the account.
+ */
+JNIEXPORT jboolean JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_getSettingsBooleanNatively(JNIEnv *env, jclass, jlong jpc, jstring jkey, jboolean jdefault_value) {
+    uintptr_t pc = jpc;
+    const char *key = env->GetStringUTFChars(jkey, 0);
+    PurpleSignalConnection *sa = (PurpleSignalConnection *)purple_connection_get_protocol_data((PurpleConnection *)pc);
+    jboolean jvalue = purple_account_get_bool(sa->account, key, jdefault_value) ? JNI_TRUE : JNI_FALSE;
+    env->ReleaseStringUTFChars(jkey, key);
+    return jvalue;
 }
 
 /*
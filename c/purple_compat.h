@@ -128,6 +128,7 @@ purple_chat_conversation_find_user(PurpleChatConversation *chat, const char *nam
 #define purple_protocol_got_user_idle purple_prpl_got_user_idle
 #define purple_serv_got_im serv_got_im
 #define purple_serv_got_typing serv_got_typing
+#define purple_serv_got_typing_stopped serv_got_typing_stopped
 #define purple_conversations_find_im_with_account(name, account) \
 	PURPLE_CONV_IM(purple_find_conversation_with_account(PURPLE_CONV_TYPE_IM, name, account))
 #define purple_im_conversation_new(account, from) PURPLE_CONV_IM(purple_conversation_new(PURPLE_CONV_TYPE_IM, account, from))
@@ -0,0 +1,144 @@
+package de.hehoe.purple_signal;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures threads and heap per account for a number of accounts in one Java VM, and how long accounts go without
+ * a receive slice while they share the ConnectionRegistry's workers.
+ *
+ * Each account is a PurpleSignal instance without a Signal service, dispatching to the stub native library. Since
+ * there is no service to receive from, the registry runs a stand-in receiver per account whose slices take a fixed
+ * time, like a saturated account's slices do.
+ *
+ * Arguments (all optional): accounts=&lt;comma-separated counts&gt; sliceMillis=&lt;time per slice&gt;
+ * seconds=&lt;duration per count&gt;
+ */
+public class AccountScalingTest {
+
+	static final String USERNAME_PREFIX = "+4900000";
+
+	private int[] accountCounts = { 1, 10, 100 };
+	private long sliceMillis = 100;
+	private int seconds = 5;
+
+	/**
+	 * Records the longest time between two slices of an account.
+	 */
+	private static class StandInReceiver implements ConnectionRegistry.Receiver {
+		final long sliceMillis;
+		long lastSliceEnd = 0; // only touched by the slice running
+		volatile long maxGapNanos = 0;
+
+		StandInReceiver(long sliceMillis) {
+			this.sliceMillis = sliceMillis;
+		}
+
+		public long receive() {
+			long start = System.nanoTime();
+			if (lastSliceEnd != 0) {
+				maxGapNanos = Math.max(maxGapNanos, start - lastSliceEnd);
+			}
+			try {
+				Thread.sleep(sliceMillis);
+			} catch (InterruptedException e) {
+				return ConnectionRegistry.STOP;
+			}
+			lastSliceEnd = System.nanoTime();
+			return 0;
+		}
+
+		public boolean isWedged() {
+			return false;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		AccountScalingTest test = new AccountScalingTest();
+		for (String arg : args) {
+			test.configure(arg);
+		}
+		test.run();
+	}
+
+	private void configure(String arg) {
+		String[] parts = arg.split("=", 2);
+		if (parts.length != 2) {
+			throw new IllegalArgumentException("Expected name=value, got " + arg);
+		}
+		switch (parts[0]) {
+		case "accounts":
+			String[] counts = parts[1].split(",");
+			accountCounts = new int[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				accountCounts[i] = Integer.parseInt(counts[i].trim());
+			}
+			break;
+		case "sliceMillis":
+			sliceMillis = Long.parseLong(parts[1]);
+			break;
+		case "seconds":
+			seconds = Integer.parseInt(parts[1]);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown argument " + parts[0]);
+		}
+	}
+
+	private void run() throws Exception {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		System.out.println(String.format("%8s %8s %12s %10s %14s %14s", "accounts", "threads", "threads/acct",
+				"heap MiB", "heap/acct KiB", "max gap ms"));
+		int baseThreads = threads.getThreadCount(); // the registry's shared threads stay between counts, they are included
+		for (int accountCount : accountCounts) {
+			File dataPath = Files.createTempDirectory("purple-signal-scaling").toFile();
+			System.gc();
+			long baseHeap = memory.getHeapMemoryUsage().getUsed();
+
+			List<PurpleSignal> accounts = new ArrayList<>();
+			List<StandInReceiver> receivers = new ArrayList<>();
+			for (int i = 0; i < accountCount; i++) {
+				long connection = i + 1;
+				PurpleSignal purpleSignal = new PurpleSignal(connection, USERNAME_PREFIX + i, dataPath.getPath(), null);
+				purpleSignal.startDispatching();
+				accounts.add(purpleSignal);
+				StandInReceiver receiver = new StandInReceiver(sliceMillis);
+				ConnectionRegistry.startReceiving(connection, receiver);
+				receivers.add(receiver);
+			}
+			Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+
+			System.gc();
+			long heap = memory.getHeapMemoryUsage().getUsed() - baseHeap;
+			int threadCount = threads.getThreadCount() - baseThreads;
+			long maxGapNanos = 0;
+			for (StandInReceiver receiver : receivers) {
+				maxGapNanos = Math.max(maxGapNanos, receiver.maxGapNanos);
+			}
+			System.out.println(String.format("%8d %8d %12.1f %10.1f %14.1f %14d", accountCount, threadCount,
+					(double) threadCount / accountCount, heap / 1048576.0, heap / 1024.0 / accountCount,
+					TimeUnit.NANOSECONDS.toMillis(maxGapNanos)));
+
+			for (PurpleSignal purpleSignal : accounts) {
+				purpleSignal.stopReceiving(); // stops the stand-in as well
+			}
+			deleteRecursively(dataPath);
+		}
+	}
+
+	private static void deleteRecursively(File directory) throws IOException {
+		try (Stream<File> files = Files.walk(directory.toPath()).map(path -> path.toFile())) {
+			files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+		}
+	}
+}
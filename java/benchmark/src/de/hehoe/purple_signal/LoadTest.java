@@ -0,0 +1,273 @@
+package de.hehoe.purple_signal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+/**
+ * Puts a steady load on PurpleSignal without a Signal service and without libpurple.
+ *
+ * The instance receives through the ConnectionRegistry like a connected account does, with a stand-in for the
+ * Manager as the source of envelopes. Messages are queued there at a fixed rate across a number of conversations,
+ * with every {@value #DUPLICATE_EVERY}th one delivered twice, and the instance's receive slices take them from
+ * there. From the handler on, they take the same path as decrypted envelopes: duplicate filter, batching, the
+ * message store and the hand-over to the stub native library. A backlog queued before receiving starts is taken
+ * during catch-up. Outgoing messages are sent with the instance's sendMessage, through its own send pipeline, whose
+ * transport takes a fixed time per send, standing in for the network.
+ *
+ * Decryption and the websocket are not covered, they need a Signal service. Latencies and heap usage are printed
+ * every second. The run fails if the receive path falls behind the rate or duplicates get through.
+ *
+ * Arguments (all optional): rate=&lt;messages/s&gt; conversations=&lt;count&gt; seconds=&lt;duration&gt;
+ * backlog=&lt;messages queued before receiving&gt; sendRate=&lt;messages/s&gt; sendMillis=&lt;time per send&gt;
+ */
+public class LoadTest {
+
+	static final String USERNAME = "+490000000000";
+	static final double MIN_ACHIEVED_RATE = 0.95; // of the requested rate
+	static final long DRAIN_TIMEOUT_MILLIS = 10000;
+	static final long CATCH_UP_TIMEOUT_MILLIS = 60000;
+	static final int DUPLICATE_EVERY = 100;
+
+	private int rate = 1000;
+	private int conversations = 100;
+	private int seconds = 30;
+	private int backlog = 1000;
+	private int sendRate = 100;
+	private long sendMillis = 20;
+
+	private static class Envelope {
+		final String source;
+		final SignalServiceAddress sender;
+		final SignalServiceDataMessage message;
+		final long queued = System.nanoTime();
+
+		Envelope(String source, SignalServiceDataMessage message) {
+			this.source = source;
+			this.sender = new SignalServiceAddress(Optional.<UUID>absent(), Optional.of(source));
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Takes the place of the Manager. Like receiveMessages, a slice returns after no envelope arrived for its
+	 * timeout.
+	 */
+	private static class StandInSource implements PurpleSignal.EnvelopeSource {
+		static final long POLL_MILLIS = 100;
+
+		final BlockingQueue<Envelope> queue = new LinkedBlockingQueue<>();
+		final Metrics.Histogram queueLatency;
+		volatile boolean sliceEnded = false;
+		volatile boolean closed = false;
+
+		StandInSource(Metrics.Histogram queueLatency) {
+			this.queueLatency = queueLatency;
+		}
+
+		@Override
+		public void receive(PurpleSignal handler, long timeoutMillis, boolean returnOnTimeout,
+				boolean ignoreAttachments) throws IOException {
+			this.sliceEnded = false;
+			long silence = 0;
+			while (silence < timeoutMillis && !this.sliceEnded) {
+				if (this.closed) {
+					throw new IOException("Connection closed.");
+				}
+				Envelope envelope;
+				try {
+					envelope = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				if (envelope == null) {
+					silence += POLL_MILLIS;
+					continue;
+				}
+				silence = 0;
+				this.queueLatency.recordNanos(System.nanoTime() - envelope.queued);
+				handler.handleDecryptedEnvelope(envelope.sender, Optional.of(envelope.message), Optional.absent(),
+						Optional.absent(), Optional.absent(), envelope.source, envelope.message.getTimestamp());
+			}
+		}
+
+		@Override
+		public boolean endSlice() {
+			this.sliceEnded = true;
+			return true;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTest loadTest = new LoadTest();
+		for (String arg : args) {
+			loadTest.configure(arg);
+		}
+		System.exit(loadTest.run() ? 0 : 1);
+	}
+
+	private void configure(String arg) {
+		String[] parts = arg.split("=", 2);
+		if (parts.length != 2) {
+			throw new IllegalArgumentException("Expected name=value, got " + arg);
+		}
+		long value = Long.parseLong(parts[1]);
+		switch (parts[0]) {
+		case "rate":
+			rate = (int) value;
+			break;
+		case "conversations":
+			conversations = (int) value;
+			break;
+		case "seconds":
+			seconds = (int) value;
+			break;
+		case "backlog":
+			backlog = (int) value;
+			break;
+		case "sendRate":
+			sendRate = (int) value;
+			break;
+		case "sendMillis":
+			sendMillis = value;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown argument " + parts[0]);
+		}
+	}
+
+	private boolean run() throws Exception {
+		File dataPath = Files.createTempDirectory("purple-signal-load").toFile();
+		Metrics loadMetrics = new Metrics();
+		Metrics.Histogram queueLatency = loadMetrics.histogram("load.queueLatency"); // until the handler takes it
+		Metrics.Histogram sendLatency = loadMetrics.histogram("load.sendLatency"); // from submission until sent
+		StandInSource source = new StandInSource(queueLatency);
+		SendPipeline.Transport transport = who -> message -> {
+			Thread.sleep(sendMillis);
+			sendLatency.recordNanos(System.nanoTime() - Long.parseLong(message.substring(0, message.indexOf(' '))));
+		};
+		PurpleSignal purpleSignal = new PurpleSignal(1, USERNAME, dataPath.getPath(), null, source, transport);
+		Metrics metrics = purpleSignal.getMetricsRegistry();
+		Metrics.Histogram receiveLatency = metrics.histogram("dispatch.latency");
+		LongAdder dispatched = metrics.counter("dispatch.messages");
+		LongAdder duplicates = metrics.counter("envelopes.duplicates");
+		LongAdder accepted = new LongAdder(); // by sendMessage
+		LongAdder sendFailures = metrics.counter("send.failures");
+
+		long timestamp = System.currentTimeMillis();
+		long unique = 0;
+		for (; unique < backlog; unique++) {
+			source.queue.add(createEnvelope(unique, timestamp++));
+		}
+		long catchUpStart = System.nanoTime();
+		purpleSignal.startReceiving();
+		while (!purpleSignal.isCaughtUp()) {
+			if (System.nanoTime() - catchUpStart > TimeUnit.MILLISECONDS.toNanos(CATCH_UP_TIMEOUT_MILLIS)) {
+				System.out.println("FAILED: catching up on " + backlog + " messages did not finish.");
+				purpleSignal.stopReceiving();
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		System.out.println("Caught up on " + backlog + " messages in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - catchUpStart) + " ms.");
+
+		System.out.println("Injecting " + rate + " messages/s across " + conversations + " conversations, sending "
+				+ sendRate + " messages/s, for " + seconds + " s.");
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+		long injected = 0;
+		long redelivered = 0;
+		long submitted = 0;
+		long peakHeap = 0;
+		for (long now = start; now < end; now = System.nanoTime()) {
+			double elapsed = (now - start) / 1e9;
+			for (; injected < rate * elapsed; injected++) {
+				Envelope envelope = createEnvelope(unique++, timestamp++);
+				source.queue.add(envelope);
+				if (unique % DUPLICATE_EVERY == 0) {
+					source.queue.add(envelope); // delivered again, e.g. after a re-connect
+					redelivered++;
+				}
+			}
+			for (; submitted < sendRate * elapsed; submitted++) {
+				if (purpleSignal.sendMessage("+49" + (submitted % conversations), System.nanoTime() + " outgoing") == 1) {
+					accepted.increment();
+				}
+			}
+			if (now >= nextReport) {
+				long heap = memory.getHeapMemoryUsage().getUsed();
+				peakHeap = Math.max(peakHeap, heap);
+				System.out.println(String.format(
+						"%3d s: injected %d, queued %d, dispatched %d, receive p99<%d µs, send p99<%d µs, heap %d MiB",
+						TimeUnit.NANOSECONDS.toSeconds(now - start), injected, source.queue.size(), dispatched.sum(),
+						Math.max(queueLatency.percentile(0.99), receiveLatency.percentile(0.99)),
+						sendLatency.percentile(0.99), heap >> 20));
+				nextReport += TimeUnit.SECONDS.toNanos(1);
+			}
+			Thread.sleep(1);
+		}
+		double injectedSeconds = (System.nanoTime() - start) / 1e9;
+
+		long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+		while ((dispatched.sum() < unique || sendLatency.getCount() + sendFailures.sum() < accepted.sum())
+				&& System.currentTimeMillis() < drainDeadline) {
+			Thread.sleep(10);
+		}
+		double achieved = (dispatched.sum() - backlog) / injectedSeconds;
+		source.closed = true;
+		purpleSignal.stopReceiving();
+
+		long gcCount = 0;
+		long gcMillis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, collector.getCollectionCount());
+			gcMillis += Math.max(0, collector.getCollectionTime());
+		}
+		System.out.println();
+		System.out.println("queued: " + queueLatency);
+		System.out.println("receive: " + receiveLatency);
+		System.out.println("send: " + sendLatency);
+		System.out.println("peak heap: " + (peakHeap >> 20) + " MiB, " + gcCount + " collections taking " + gcMillis
+				+ " ms");
+		System.out.println();
+		System.out.print(purpleSignal.getMetrics());
+		deleteRecursively(dataPath);
+
+		boolean passed = achieved >= rate * MIN_ACHIEVED_RATE && dispatched.sum() >= unique
+				&& duplicates.sum() == redelivered && accepted.sum() == submitted && sendFailures.sum() == 0;
+		System.out.println(String.format("%s: %.0f of %d messages/s handed over, %d of %d duplicates dropped, "
+				+ "%d of %d messages sent.", passed ? "PASSED" : "FAILED", achieved, rate, duplicates.sum(),
+				redelivered, sendLatency.getCount(), submitted));
+		return passed;
+	}
+
+	private Envelope createEnvelope(long number, long timestamp) {
+		SignalServiceDataMessage message = SignalServiceDataMessage.newBuilder().withTimestamp(timestamp)
+				.withBody("Load test message number " + number + ".").build();
+		return new Envelope("+49" + (number % conversations), message);
+	}
+
+	private static void deleteRecursively(File directory) throws IOException {
+		try (Stream<File> files = Files.walk(directory.toPath()).map(path -> path.toFile())) {
+			files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+		}
+	}
+}
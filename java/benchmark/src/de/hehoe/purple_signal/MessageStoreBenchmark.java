@@ -0,0 +1,131 @@
+package de.hehoe.purple_signal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the message store's write throughput and query latency on a store filled with many messages.
+ *
+ * Filling the store takes a while, the time is printed once the setup is done.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class MessageStoreBenchmark {
+
+	static final int CONVERSATIONS = 1000;
+	static final int WRITE_BATCH = 10000;
+	static final String[] WORDS = { "hello", "world", "meeting", "tomorrow", "lunch", "coffee", "later", "signal",
+			"pidgin", "message", "photo", "call", "weekend", "train", "late", "thanks", "tonight", "home", "work",
+			"pizza" };
+
+	@Param({ "1000000" })
+	public int messages;
+
+	private File directory;
+	private MessageStore store;
+	private Random random;
+	private long timestamp;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("purple-signal-store").toFile();
+		store = new MessageStore(directory, new Metrics());
+		store.start();
+		random = new Random(42);
+		timestamp = 1600000000000L;
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < messages; i += WRITE_BATCH) {
+			appendBatch();
+		}
+		System.out.println("Filled store with " + messages + " messages in " + (System.currentTimeMillis() - start)
+				+ " ms.");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		store.stop();
+		try (Stream<File> files = Files.walk(directory.toPath()).map(path -> path.toFile())) {
+			files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+		}
+	}
+
+	private String body() {
+		StringBuilder body = new StringBuilder();
+		int length = 3 + random.nextInt(12);
+		for (int i = 0; i < length; i++) {
+			body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		return body.toString();
+	}
+
+	private void appendBatch() throws InterruptedException {
+		for (int i = 0; i < WRITE_BATCH; i++) {
+			String chat = "+49" + random.nextInt(CONVERSATIONS);
+			while (!store.append(chat, chat, body(), timestamp++, 0x0002)) {
+				store.flush(); // the writer is behind, wait for it rather than dropping messages
+			}
+		}
+		store.flush();
+	}
+
+	/**
+	 * Appends messages and waits until they have been written and indexed.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(WRITE_BATCH)
+	public void write() throws InterruptedException {
+		appendBatch();
+	}
+
+	/**
+	 * Fetches the 50 most recent messages of a conversation.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<MessageStore.StoredMessage> range() throws InterruptedException {
+		String chat = "+49" + random.nextInt(CONVERSATIONS);
+		long to = timestamp;
+		long from = to - 50L * CONVERSATIONS;
+		return store.range(chat, from, to, 50);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<MessageStore.StoredMessage> searchCommonWords() throws InterruptedException {
+		return store.search(WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)], 20);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<MessageStore.StoredMessage> searchWithoutResult() throws InterruptedException {
+		return store.search("pizza unknown", 20);
+	}
+}
@@ -0,0 +1,117 @@
+package de.hehoe.purple_signal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.messages.SignalServiceGroup;
+import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
+import org.whispersystems.signalservice.api.messages.SignalServiceTypingMessage;
+import org.whispersystems.signalservice.api.messages.multidevice.SentTranscriptMessage;
+import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+/**
+ * Feeds synthetic messages through PurpleSignal's receive path.
+ *
+ * Runs against the stub native library, so this measures the Java side up to the hand-over to libpurple.
+ * Run with "-prof gc" to see the allocation per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReceivePathBenchmark {
+
+	static final String USERNAME = "+490000000000";
+	static final String SOURCE = "+491111111111";
+	static final String DESTINATION = "+492222222222";
+
+	private File dataPath;
+	private PurpleSignal purpleSignal;
+	private SignalServiceAddress sender;
+	private SignalServiceDataMessage directMessage;
+	private SignalServiceDataMessage groupMessage;
+	private SignalServiceSyncMessage sentTranscript;
+	private SignalServiceReceiptMessage receiptMessage;
+	private SignalServiceTypingMessage typingMessage;
+
+	@Setup
+	public void setUp() throws IOException {
+		dataPath = Files.createTempDirectory("purple-signal-receive").toFile();
+		purpleSignal = new PurpleSignal(1, USERNAME, dataPath.getPath(), null);
+		purpleSignal.startDispatching();
+
+		long timestamp = System.currentTimeMillis();
+		sender = new SignalServiceAddress(Optional.<UUID>absent(), Optional.of(SOURCE));
+		directMessage = SignalServiceDataMessage.newBuilder().withTimestamp(timestamp)
+				.withBody("Hello, this is a message of typical length.").build();
+		byte[] groupId = new byte[16];
+		Arrays.fill(groupId, (byte) 42);
+		SignalServiceGroup group = SignalServiceGroup.newBuilder(SignalServiceGroup.Type.DELIVER).withId(groupId)
+				.build();
+		groupMessage = SignalServiceDataMessage.newBuilder().withTimestamp(timestamp)
+				.withBody("Hello, this is a group message of typical length.").asGroupMessage(group).build();
+		SignalServiceAddress destination = new SignalServiceAddress(Optional.<UUID>absent(), Optional.of(DESTINATION));
+		sentTranscript = SignalServiceSyncMessage.forSentTranscript(new SentTranscriptMessage(Optional.of(destination),
+				timestamp, directMessage, 0, Collections.emptyMap(), false));
+		receiptMessage = new SignalServiceReceiptMessage(SignalServiceReceiptMessage.Type.READ,
+				Arrays.asList(timestamp), timestamp);
+		typingMessage = new SignalServiceTypingMessage(SignalServiceTypingMessage.Action.STARTED, timestamp,
+				Optional.<byte[]>absent());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		purpleSignal.stopReceiving();
+		try (Stream<File> files = Files.walk(dataPath.toPath()).map(path -> path.toFile())) {
+			files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+		}
+	}
+
+	@Benchmark
+	public void directMessage() {
+		purpleSignal.handleDataMessage(directMessage, sender, SOURCE);
+	}
+
+	@Benchmark
+	public void groupV1Message() {
+		purpleSignal.handleDataMessage(groupMessage, sender, SOURCE);
+	}
+
+	@Benchmark
+	public void sentTranscript() {
+		purpleSignal.handleSyncMessage(sentTranscript, USERNAME);
+	}
+
+	@Benchmark
+	public void receipt() {
+		purpleSignal.handleReceiptMessage(receiptMessage, SOURCE, receiptMessage.getWhen());
+	}
+
+	@Benchmark
+	public void typing() {
+		purpleSignal.handleTypingMessage(typingMessage, SOURCE);
+	}
+}
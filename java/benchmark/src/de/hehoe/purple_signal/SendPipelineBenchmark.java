@@ -0,0 +1,69 @@
+package de.hehoe.purple_signal;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many messages per second a burst of short messages gets sent with, to one or many conversations, with
+ * and without coalescing.
+ *
+ * The transport is a stub which takes a fixed time per send, standing in for encryption and the request to the
+ * server. Resolving a recipient only takes a lookup in PurpleSignal, so the stub does not add a cost for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendPipelineBenchmark {
+
+	static final int BURST = 1000;
+	static final long SEND_MILLIS = 2;
+
+	@Param({ "0", "5" })
+	public long maxDelayMillis;
+
+	@Param({ "1", "16" })
+	public int conversations;
+
+	private SendPipeline sendPipeline;
+	private final Semaphore sent = new Semaphore(0); // one permit per message which has been sent
+
+	@Setup
+	public void setUp() {
+		sendPipeline = new SendPipeline(1, who -> message -> {
+			Thread.sleep(SEND_MILLIS);
+			sent.release();
+		}, new Metrics());
+		sendPipeline.setMaxDelayMillis(maxDelayMillis);
+	}
+
+	@TearDown
+	public void tearDown() {
+		sendPipeline.stop();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void burst() throws InterruptedException {
+		for (int i = 0; i < BURST; i++) {
+			sendPipeline.submit("+49" + (i % conversations), "Message number " + i);
+		}
+		sent.acquire(BURST);
+	}
+}
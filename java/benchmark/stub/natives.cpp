@@ -0,0 +1,46 @@
+/*
+ * Stand-in for the plug-in's native functions so PurpleSignal can run without libpurple.
+ * 
+ * Built as a library called purple-signal, it is loaded by PurpleSignal's static initializer
+ * when its directory is on java.library.path. Everything handed over is discarded.
+ */
+
+#include "de_hehoe_purple_signal_PurpleSignal.h"
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_logNatively(JNIEnv *, jclass, jint, jstring) {}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleMessageBufferNatively(JNIEnv *env, jclass, jlong, jobject jbuffer, jint) {
+    env->GetDirectBufferAddress(jbuffer); // as the plug-in does, the content is discarded
+}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_updateRosterNatively(JNIEnv *env, jclass, jlong, jobject jbuffer, jint, jlong) {
+    env->GetDirectBufferAddress(jbuffer);
+}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleTypingNatively(JNIEnv *, jclass, jlong, jstring, jboolean) {}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleReceiptNatively(JNIEnv *, jclass, jlong, jstring, jint, jlong) {}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleSendResultNatively(JNIEnv *, jclass, jlong, jstring, jboolean, jstring) {}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleErrorNatively(JNIEnv *, jclass, jlong, jstring) {}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_askRegisterOrLinkNatively(JNIEnv *, jclass, jlong) {}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_handleQRCodeNatively(JNIEnv *, jclass, jlong, jstring) {}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_askVerificationCodeNatively(JNIEnv *, jclass, jlong) {}
+
+JNIEXPORT jstring JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_getSettingsStringNatively(JNIEnv *, jclass, jlong, jstring, jstring jdefault_value) {
+    return jdefault_value;
+}
+
+JNIEXPORT jboolean JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_getSettingsBooleanNatively(JNIEnv *, jclass, jlong, jstring, jboolean jdefault_value) {
+    return jdefault_value;
+}
+
+JNIEXPORT void JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_setSettingsStringNatively(JNIEnv *, jclass, jlong, jstring, jstring) {}
+
+JNIEXPORT jlong JNICALL Java_de_hehoe_purple_1signal_PurpleSignal_lookupUsernameNatively(JNIEnv *, jclass, jstring) {
+    return 0;
+}
@@ -0,0 +1,145 @@
+package de.hehoe.purple_signal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
+
+/**
+ * Downloads attachments on the {@link ConnectionRegistry}'s shared pool so the receiver does not wait for them.
+ *
+ * Attachments are decrypted while streaming and written to disk in chunks, never held in memory as a whole. The file
+ * is moved to its final name only after it is complete. Concurrent requests for the same attachment share one
+ * download. Attachments already on disk are not downloaded again.
+ */
+public class AttachmentDownloader {
+
+	static final int BUFFER_SIZE = 8192;
+
+	public interface Source {
+		/**
+		 * @param encrypted temporary file the encrypted attachment may be buffered in
+		 * @return stream of the decrypted attachment
+		 */
+		InputStream open(SignalServiceAttachmentPointer pointer, File encrypted)
+				throws IOException, InvalidMessageException;
+	}
+
+	private final File directory;
+	private final Source source;
+	private final Map<String, CompletableFuture<File>> downloads = new ConcurrentHashMap<>();
+	private final Map<String, Future<?>> tasks = new ConcurrentHashMap<>(); // to cancel the downloads
+	private volatile boolean stopped = false;
+	private final Metrics.Histogram downloadLatency;
+	private final LongAdder downloadedBytes;
+	private final LongAdder failures;
+
+	public AttachmentDownloader(File directory, Source source, Metrics metrics) {
+		this.directory = directory;
+		this.source = source;
+		this.downloadLatency = metrics.histogram("attachments.latency");
+		this.downloadedBytes = metrics.counter("attachments.bytes");
+		this.failures = metrics.counter("attachments.failures");
+		metrics.gauge("attachments.pending", downloads::size);
+	}
+
+	/**
+	 * @return the file once the attachment is on disk
+	 */
+	public CompletableFuture<File> download(SignalServiceAttachmentPointer pointer) {
+		String id = pointer.getRemoteId().toString();
+		CompletableFuture<File> download = new CompletableFuture<>();
+		CompletableFuture<File> running = downloads.putIfAbsent(id, download);
+		if (running != null) {
+			return running;
+		}
+		File target = new File(directory, fileName(id, pointer));
+		if (target.exists()) {
+			downloads.remove(id, download);
+			download.complete(target);
+			return download;
+		}
+		if (stopped) {
+			downloads.remove(id, download);
+			download.completeExceptionally(new IOException("Downloads have been stopped."));
+			return download;
+		}
+		Future<?> task = ConnectionRegistry.execute(() -> fetch(id, pointer, target, download));
+		tasks.put(id, task);
+		if (download.isDone()) {
+			tasks.remove(id, task); // finished before it was put
+		}
+		if (stopped) {
+			cancelAll(); // stopped meanwhile
+		}
+		return download;
+	}
+
+	/**
+	 * Abandons the downloads. Called on libpurple's main thread, so it does not wait for them to end.
+	 */
+	public void stop() {
+		stopped = true;
+		cancelAll();
+	}
+
+	private void cancelAll() {
+		for (Future<?> task : tasks.values()) {
+			task.cancel(true); // interrupts the download if it is running
+		}
+		tasks.clear();
+	}
+
+	private void fetch(String id, SignalServiceAttachmentPointer pointer, File target,
+			CompletableFuture<File> download) {
+		long start = System.nanoTime();
+		File partial = new File(directory, target.getName() + ".part");
+		File encrypted = null;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create directory " + directory + ".");
+			}
+			encrypted = File.createTempFile("attachment", ".encrypted", directory);
+			try (InputStream in = source.open(pointer, encrypted); OutputStream out = new FileOutputStream(partial)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+					downloadedBytes.add(read);
+				}
+			}
+			if (!partial.renameTo(target)) {
+				throw new IOException("Unable to move " + partial + " to " + target + ".");
+			}
+			downloadLatency.recordNanos(System.nanoTime() - start);
+			download.complete(target);
+		} catch (Exception e) {
+			failures.increment();
+			partial.delete();
+			download.completeExceptionally(e);
+		} finally {
+			if (encrypted != null) {
+				encrypted.delete();
+			}
+			tasks.remove(id);
+			downloads.remove(id, download);
+		}
+	}
+
+	private static String fileName(String id, SignalServiceAttachmentPointer pointer) {
+		String name = id;
+		if (pointer.getFileName().isPresent()) {
+			name += "-" + pointer.getFileName().get(); // keeps the original name recognizable
+		}
+		return name.replaceAll("[^\\w.-]", "_"); // must not escape the directory
+	}
+}
@@ -0,0 +1,238 @@
+package de.hehoe.purple_signal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of all accounts connected in this Java VM and runs their receivers on a shared executor.
+ *
+ * Instead of one thread per account, each account receives in slices. After a slice has finished, the account's next
+ * slice is queued behind the slices of all other accounts, so accounts take turns when there are more accounts than
+ * workers. For this to be fair, receivers keep their slices short while {@link #isSaturated()}, no matter how many
+ * messages arrive. A receiver may ask for its next slice to be delayed, e.g. to back off after an error.
+ *
+ * A watchdog periodically asks the running receivers whether they are stuck and interrupts the ones which are.
+ *
+ * The accounts' other background work runs on threads shared by all accounts as well: work which may block (sending,
+ * downloading, writing) on a pool of its own, so it does not hold up receiving, and short hand-overs to libpurple on
+ * the scheduler.
+ */
+public class ConnectionRegistry {
+
+	static final int DEFAULT_WORKERS = 8;
+	static final String WORKERS_PROPERTY = "purple_signal.receivers";
+	static final int DEFAULT_TASK_THREADS = 8;
+	static final String TASK_THREADS_PROPERTY = "purple_signal.tasks";
+	static final long WATCHDOG_PERIOD_SECONDS = 15;
+	public static final long STOP = -1;
+
+	public interface Receiver {
+		/**
+		 * Receives messages for a while. Should end within a bounded time while the registry is saturated.
+		 *
+		 * @return milliseconds to wait before the next slice, {@link ConnectionRegistry#STOP} to stop receiving
+		 */
+		long receive();
+
+		/**
+		 * Called by the watchdog while a slice is running.
+		 *
+		 * @return whether the slice has not shown any progress for too long and should be interrupted
+		 */
+		boolean isWedged();
+	}
+
+	private static class Registration implements Runnable {
+		final long connection;
+		final Receiver receiver;
+		boolean registered = true;
+		boolean running = false;
+		Thread thread = null;
+
+		Registration(long connection, Receiver receiver) {
+			this.connection = connection;
+			this.receiver = receiver;
+		}
+
+		public void run() {
+			synchronized (this) {
+				if (!registered) {
+					return;
+				}
+				running = true;
+				thread = Thread.currentThread();
+			}
+			long delay = STOP;
+			try {
+				delay = receiver.receive();
+			} finally {
+				synchronized (this) {
+					running = false;
+					thread = null;
+					Thread.interrupted(); // the watchdog's interrupt must not leak into the next task
+					registered = registered && delay >= 0;
+					notifyAll();
+					if (registered) {
+						if (delay == 0) {
+							workers.execute(this); // queue behind the other accounts
+						} else {
+							scheduler.schedule(() -> workers.execute(this), delay, TimeUnit.MILLISECONDS);
+						}
+					} else {
+						receivers.remove(connection, this);
+					}
+				}
+			}
+		}
+
+		synchronized void checkWedged() {
+			if (running && receiver.isWedged()) {
+				thread.interrupt();
+			}
+		}
+
+		synchronized void cancelAndWait() {
+			registered = false;
+			while (running) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private static final Map<String, Long> connections = new ConcurrentHashMap<>();
+	private static final Map<Long, Registration> receivers = new ConcurrentHashMap<>();
+	private static final ExecutorService workers = createWorkers();
+	private static final ScheduledExecutorService scheduler = createScheduler();
+	private static final ExecutorService tasks = createPool(Integer.getInteger(TASK_THREADS_PROPERTY,
+			DEFAULT_TASK_THREADS), "Task-");
+
+	/**
+	 * Uses a virtual thread per receiver if the runtime allows, a bounded pool of platform threads otherwise.
+	 *
+	 * Virtual threads are only used from Java 24 on: signal-service's websocket waits inside synchronized blocks, which
+	 * pins virtual threads to their carriers in earlier versions.
+	 */
+	private static ExecutorService createWorkers() {
+		int specificationVersion = 8;
+		try {
+			specificationVersion = Integer.parseInt(System.getProperty("java.specification.version"));
+		} catch (NumberFormatException e) {
+			// "1.8" and older
+		}
+		if (specificationVersion >= 24) {
+			try {
+				// the plug-in is compiled for Java 8, so this needs to be looked up at runtime
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				// fall back to platform threads
+			}
+		}
+		return createPool(Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS), "Receiver-");
+	}
+
+	private static ExecutorService createPool(int size, String namePrefix) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable);
+				thread.setName(namePrefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				threadFactory);
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private static ScheduledExecutorService createScheduler() {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setName("Scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleAtFixedRate(() -> {
+			for (Registration registration : receivers.values()) {
+				registration.checkWedged();
+			}
+		}, WATCHDOG_PERIOD_SECONDS, WATCHDOG_PERIOD_SECONDS, TimeUnit.SECONDS);
+		return scheduler;
+	}
+
+	/**
+	 * Runs a task which may block, e.g. on the network, on the pool shared by all accounts.
+	 *
+	 * @return the task, which may be cancelled
+	 */
+	public static Future<?> execute(Runnable task) {
+		return tasks.submit(task);
+	}
+
+	/**
+	 * Runs a short task on the scheduler after the delay. Tasks run one after another, so they must not block.
+	 */
+	public static void schedule(Runnable task, long delayMillis) {
+		scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Whether there are more receiving accounts than workers. In that case, slices should be kept short.
+	 */
+	public static boolean isSaturated() {
+		if (workers instanceof ThreadPoolExecutor) {
+			return receivers.size() > ((ThreadPoolExecutor) workers).getMaximumPoolSize();
+		}
+		return false;
+	}
+
+	public static void register(String username, long connection) {
+		connections.put(username, connection);
+	}
+
+	public static void unregister(String username, long connection) {
+		connections.remove(username, connection);
+	}
+
+	/**
+	 * @return the connection handling the username, 0 if there is none in this Java VM
+	 */
+	public static long lookup(String username) {
+		Long connection = connections.get(username);
+		return connection == null ? 0 : connection;
+	}
+
+	public static boolean startReceiving(long connection, Receiver receiver) {
+		Registration registration = new Registration(connection, receiver);
+		if (receivers.putIfAbsent(connection, registration) != null) {
+			return false;
+		}
+		workers.execute(registration);
+		return true;
+	}
+
+	/**
+	 * Stops receiving for the connection. Waits for the current slice to finish.
+	 */
+	public static void stopReceiving(long connection) {
+		Registration registration = receivers.remove(connection);
+		if (registration != null) {
+			registration.cancelAndWait();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package de.hehoe.purple_signal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of direct buffers for handing data over to native code.
+ *
+ * Allocating direct buffers is expensive and their memory is only released by the garbage collector, so they are
+ * reused. Buffers have power-of-two capacities and native byte order.
+ */
+public class DirectBufferPool {
+
+	static final int MIN_CAPACITY = 64 * 1024;
+	static final int MAX_POOLED_CAPACITY = 16 * 1024 * 1024; // larger buffers are not kept
+	static final int MAX_POOLED = 8;
+
+	private static final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+
+	/**
+	 * @return a cleared buffer with at least the capacity
+	 */
+	public static ByteBuffer acquire(int capacity) {
+		synchronized (buffers) {
+			for (ByteBuffer buffer : buffers) {
+				if (buffer.capacity() >= capacity) {
+					buffers.remove(buffer);
+					buffer.clear();
+					return buffer;
+				}
+			}
+		}
+		int size = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(capacity, 1) - 1) << 1);
+		if (size < capacity) {
+			size = capacity; // beyond the largest power of two
+		}
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+	}
+
+	public static void release(ByteBuffer buffer) {
+		if (buffer.capacity() > MAX_POOLED_CAPACITY) {
+			return;
+		}
+		synchronized (buffers) {
+			if (buffers.size() < MAX_POOLED) {
+				buffers.push(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package de.hehoe.purple_signal;
+
+import java.util.Arrays;
+
+/**
+ * Recognizes messages which have been received before, identified by author and timestamp.
+ *
+ * Keys are 64 bit hashes kept in two generations of open-addressing hash tables. When the current generation is older
+ * than the window or has filled up, the older generation is cleared and becomes the current one. A message is
+ * therefore remembered for at least one window (unless there are more messages than a generation holds) and memory
+ * use stays fixed.
+ */
+public class DuplicateFilter {
+
+	static final int DEFAULT_CAPACITY = 16384; // keys per generation
+	static final long DEFAULT_WINDOW_MILLIS = 30 * 60 * 1000;
+	private static final long EMPTY = 0;
+
+	private final long[][] generations = new long[2][];
+	private final int[] sizes = new int[2];
+	private final int maxSize;
+	private final long windowMillis;
+	private int current = 0;
+	private long currentSince;
+
+	public DuplicateFilter() {
+		this(DEFAULT_CAPACITY, DEFAULT_WINDOW_MILLIS);
+	}
+
+	public DuplicateFilter(int capacity, long windowMillis) {
+		int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) * 2; // load factor ≤ 0.5
+		this.generations[0] = new long[tableSize];
+		this.generations[1] = new long[tableSize];
+		this.maxSize = tableSize / 2;
+		this.windowMillis = windowMillis;
+		this.currentSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Remembers the message.
+	 *
+	 * @return false if the message has been seen before
+	 */
+	public synchronized boolean add(String author, long timestamp) {
+		long key = key(author, timestamp);
+		if (contains(generations[0], key) || contains(generations[1], key)) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if (now - currentSince > windowMillis || sizes[current] >= maxSize) {
+			current = 1 - current;
+			Arrays.fill(generations[current], EMPTY);
+			sizes[current] = 0;
+			currentSince = now;
+		}
+		insert(generations[current], key);
+		sizes[current]++;
+		return true;
+	}
+
+	private static boolean contains(long[] table, long key) {
+		int mask = table.length - 1;
+		for (int slot = index(key, mask); table[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (table[slot] == key) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void insert(long[] table, long key) {
+		int mask = table.length - 1;
+		int slot = index(key, mask);
+		while (table[slot] != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = key;
+	}
+
+	private static int index(long key, int mask) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/**
+	 * FNV-1a over the author, mixed with the timestamp. Never returns {@link #EMPTY}.
+	 */
+	static long key(String author, long timestamp) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < author.length(); i++) {
+			hash ^= author.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= timestamp * 0x9E3779B97F4A7C15L;
+		hash ^= hash >>> 29; // spread the high bits into the ones used for the slot
+		return hash == EMPTY ? 1 : hash;
+	}
+}
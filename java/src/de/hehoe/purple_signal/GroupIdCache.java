@@ -0,0 +1,54 @@
+package de.hehoe.purple_signal;
+
+import java.nio.ByteBuffer;
+
+import org.asamk.signal.util.GroupIdFormatException;
+import org.asamk.signal.util.Util;
+import org.whispersystems.util.Base64;
+
+/**
+ * Maps raw group IDs to the chat names used in libpurple and back, so busy groups do not need to be encoded and
+ * decoded for every single message.
+ */
+public class GroupIdCache {
+
+	static final int DEFAULT_CAPACITY = 256;
+
+	private final LruCache<ByteBuffer, String> chats;
+	private final LruCache<String, byte[]> groupIds;
+
+	public GroupIdCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public GroupIdCache(int capacity) {
+		this.chats = new LruCache<>(capacity);
+		this.groupIds = new LruCache<>(capacity);
+	}
+
+	public String getChat(byte[] groupId) {
+		ByteBuffer key = ByteBuffer.wrap(groupId); // compares by content
+		String chat = chats.get(key);
+		if (chat == null) {
+			chat = Base64.encodeBytes(groupId);
+			chats.put(key, chat);
+			groupIds.put(chat, groupId);
+		}
+		return chat;
+	}
+
+	public byte[] getGroupId(String chat) throws GroupIdFormatException {
+		byte[] groupId = groupIds.get(chat);
+		if (groupId == null) {
+			groupId = Util.decodeGroupId(chat);
+			groupIds.put(chat, groupId);
+			chats.put(ByteBuffer.wrap(groupId), chat);
+		}
+		return groupId;
+	}
+
+	@Override
+	public String toString() {
+		return "group chat names " + chats + ", group IDs " + groupIds;
+	}
+}
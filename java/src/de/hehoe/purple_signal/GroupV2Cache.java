@@ -0,0 +1,134 @@
+package de.hehoe.purple_signal;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.signal.storageservice.protos.groups.GroupChange;
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.signal.zkgroup.InvalidInputException;
+import org.signal.zkgroup.groups.GroupSecretParams;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.groupsv2.ClientZkOperations;
+import org.whispersystems.signalservice.api.groupsv2.GroupsV2Operations;
+import org.whispersystems.signalservice.api.messages.SignalServiceGroupV2;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+
+/**
+ * Keeps what is known about Group V2 groups, keyed by their master key.
+ *
+ * Deriving a group's secret parameters from its master key is expensive, so it is done once per group. Group changes
+ * which come along with messages are decrypted and applied to the cached state if they are newer than what has been
+ * seen so far. The group state is never fetched from the server, the title is learned from the changes.
+ */
+public class GroupV2Cache {
+
+	static final int DEFAULT_CAPACITY = 256;
+
+	private static class GroupState {
+		final GroupSecretParams secretParams;
+		int revision = -1; // guarded by this
+		String title = null; // guarded by this, names the group in the events
+
+		GroupState(GroupSecretParams secretParams) {
+			this.secretParams = secretParams;
+		}
+	}
+
+	private final LruCache<ByteBuffer, GroupState> groups;
+	private final SignalServiceConfiguration serviceConfiguration;
+	private GroupsV2Operations operations = null; // created on first use
+	private final LongAdder derivations;
+	private final LongAdder appliedChanges;
+	private final LongAdder failedChanges;
+	private final LongAdder missedRevisions;
+
+	public GroupV2Cache(SignalServiceConfiguration serviceConfiguration, Metrics metrics) {
+		this(serviceConfiguration, metrics, DEFAULT_CAPACITY);
+	}
+
+	public GroupV2Cache(SignalServiceConfiguration serviceConfiguration, Metrics metrics, int capacity) {
+		this.serviceConfiguration = serviceConfiguration;
+		this.groups = new LruCache<>(capacity);
+		this.derivations = metrics.counter("groupsV2.derivations");
+		this.appliedChanges = metrics.counter("groupsV2.appliedChanges");
+		this.failedChanges = metrics.counter("groupsV2.failedChanges");
+		this.missedRevisions = metrics.counter("groupsV2.missedRevisions");
+	}
+
+	/**
+	 * Looks up the group and applies the change it carries, if any.
+	 *
+	 * @param events receives a description of every change worth showing to the user
+	 */
+	public void update(SignalServiceGroupV2 group, List<String> events) throws InvalidInputException {
+		ByteBuffer key = ByteBuffer.wrap(group.getMasterKey().serialize()); // compares by content
+		GroupState state = groups.get(key);
+		if (state == null) {
+			GroupSecretParams secretParams = GroupSecretParams.deriveFromMasterKey(group.getMasterKey());
+			derivations.increment();
+			state = new GroupState(secretParams);
+			groups.put(key, state);
+		}
+		synchronized (state) {
+			if (group.getRevision() > state.revision) {
+				if (state.revision >= 0 && group.getRevision() > state.revision + 1) {
+					// only the latest change comes along with a message, the ones in between are not fetched
+					missedRevisions.add(group.getRevision() - state.revision - 1);
+					PurpleSignal.logNatively(PurpleSignal.DEBUG_LEVEL_INFO, "Group changes from revision "
+							+ (state.revision + 1) + " to " + (group.getRevision() - 1) + " have been skipped.");
+				}
+				byte[] signedGroupChange = group.getSignedGroupChange();
+				if (signedGroupChange != null) {
+					apply(state, signedGroupChange, events);
+				}
+				state.revision = group.getRevision();
+			}
+		}
+	}
+
+	private void apply(GroupState state, byte[] signedGroupChange, List<String> events) {
+		GroupsV2Operations operations = getOperations();
+		if (operations == null) {
+			return; // not connected to a service
+		}
+		try {
+			Optional<DecryptedGroupChange> decrypted = operations.forGroup(state.secretParams)
+					.decryptChange(GroupChange.parseFrom(signedGroupChange), true);
+			if (!decrypted.isPresent()) {
+				return;
+			}
+			DecryptedGroupChange change = decrypted.get();
+			if (change.hasNewTitle()) {
+				String title = change.getNewTitle().getValue();
+				events.add("[" + (state.title != null ? "Group \"" + state.title + "\"" : "A group")
+						+ " has been renamed to \"" + title + "\".]");
+				state.title = title;
+			}
+			String name = state.title != null ? "group \"" + state.title + "\"" : "a group";
+			if (change.getNewMembersCount() > 0) {
+				events.add("[" + change.getNewMembersCount() + " member(s) have been added to " + name + ".]");
+			}
+			if (change.getDeleteMembersCount() > 0) {
+				events.add("[" + change.getDeleteMembersCount() + " member(s) have been removed from " + name + ".]");
+			}
+			appliedChanges.increment();
+		} catch (Exception e) {
+			// malformed, not verifiable or not decryptable – the message itself is still fine
+			failedChanges.increment();
+			PurpleSignal.logNatively(PurpleSignal.DEBUG_LEVEL_INFO, "Unable to apply group change: " + e);
+		}
+	}
+
+	private synchronized GroupsV2Operations getOperations() {
+		if (operations == null && serviceConfiguration != null) {
+			operations = new GroupsV2Operations(ClientZkOperations.create(serviceConfiguration));
+		}
+		return operations;
+	}
+
+	@Override
+	public String toString() {
+		return "groups " + groups;
+	}
+}
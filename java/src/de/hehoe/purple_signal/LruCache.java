@@ -0,0 +1,59 @@
+package de.hehoe.purple_signal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small, thread-safe cache which evicts the least recently used entry once full. Counts hits and misses.
+ */
+public class LruCache<K, V> {
+
+	private final Map<K, V> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public LruCache(int capacity) {
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value, null if there is none
+	 */
+	public V get(K key) {
+		V value;
+		synchronized (entries) {
+			value = entries.get(key);
+		}
+		(value == null ? misses : hits).incrementAndGet();
+		return value;
+	}
+
+	public void put(K key, V value) {
+		synchronized (entries) {
+			entries.put(key, value);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return h + "/" + total + " hits" + (total > 0 ? " (" + (100 * h / total) + " %)" : "");
+	}
+}
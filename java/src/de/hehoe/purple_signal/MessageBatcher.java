@@ -0,0 +1,248 @@
+package de.hehoe.purple_signal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects messages destined for libpurple and hands them over in batches.
+ *
+ * A batch is handed over after a short window has passed since its first message or when it is full, whichever
+ * happens first. A burst of messages (e.g. after being offline for a while) results in a few JNI calls and a few
+ * callbacks in the GTK main loop instead of one for every single message.
+ *
+ * Batches are handed over on the {@link ConnectionRegistry}'s scheduler, there is no thread per account.
+ */
+public class MessageBatcher {
+
+	static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	static final long DEFAULT_WINDOW_MILLIS = 25;
+	static final long COALESCING_WINDOW_MILLIS = 250;
+	static final int MAX_UTF8_BYTES_PER_CHAR = 3; // a surrogate pair of two chars takes four bytes
+
+	private static class Message {
+		final String chat;
+		final String sender;
+		final String content;
+		final long timestamp;
+		final int flags;
+		final Runnable onDelivered;
+		final long queuedAt = System.nanoTime();
+
+		Message(String chat, String sender, String content, long timestamp, int flags, Runnable onDelivered) {
+			this.chat = chat;
+			this.sender = sender;
+			this.content = content;
+			this.timestamp = timestamp;
+			this.flags = flags;
+			this.onDelivered = onDelivered;
+		}
+	}
+
+	private final long connection;
+	private final int maxBatchSize;
+	private final long windowMillis;
+	private boolean coalescing = false;
+	private List<Message> pending = new ArrayList<>();
+	private long batchNumber = 0; // of the pending batch, a hand-over scheduled for an earlier one does nothing
+	private boolean keepDispatching = false;
+	private final Object dispatching = new Object(); // held while handing over, keeps batches in order
+	private final Metrics.Histogram dispatchLatency;
+	private final LongAdder batches;
+	private final LongAdder messages;
+
+	public MessageBatcher(long connection, Metrics metrics) {
+		this(connection, metrics, DEFAULT_MAX_BATCH_SIZE, DEFAULT_WINDOW_MILLIS);
+	}
+
+	public MessageBatcher(long connection, Metrics metrics, int maxBatchSize, long windowMillis) {
+		this.connection = connection;
+		this.maxBatchSize = maxBatchSize;
+		this.windowMillis = windowMillis;
+		this.dispatchLatency = metrics.histogram("dispatch.latency"); // from add() until libpurple has the message
+		this.batches = metrics.counter("dispatch.batches");
+		this.messages = metrics.counter("dispatch.messages");
+		metrics.gauge("dispatch.pending", this::getPendingCount);
+	}
+
+	public synchronized void start() {
+		if (!keepDispatching) {
+			keepDispatching = true;
+			if (!pending.isEmpty()) {
+				schedule(0);
+			}
+		}
+	}
+
+	/**
+	 * Stops dispatching. Messages still pending are handed over right away.
+	 */
+	public void stop() {
+		synchronized (this) {
+			keepDispatching = false;
+		}
+		while (handOver(-1)) {
+			// until nothing is pending
+		}
+	}
+
+	/**
+	 * While coalescing, batches are collected over a longer window and messages are grouped by conversation so the UI
+	 * gets to update each conversation once per batch. Order within a conversation is kept.
+	 */
+	public synchronized void setCoalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public void add(String chat, String sender, String content, long timestamp, int flags) {
+		add(chat, sender, content, timestamp, flags, null);
+	}
+
+	/**
+	 * @param onDelivered called after the message has been handed over to libpurple, must not block
+	 */
+	public synchronized void add(String chat, String sender, String content, long timestamp, int flags,
+			Runnable onDelivered) {
+		pending.add(new Message(chat, sender, content, timestamp, flags, onDelivered));
+		if (!keepDispatching) {
+			return; // handed over once started
+		}
+		if (pending.size() == 1) {
+			schedule(coalescing ? COALESCING_WINDOW_MILLIS : windowMillis);
+		} else if (pending.size() == maxBatchSize) {
+			schedule(0);
+		}
+	}
+
+	/**
+	 * Must hold the lock.
+	 */
+	private void schedule(long delayMillis) {
+		long batch = batchNumber;
+		ConnectionRegistry.schedule(() -> handOver(batch), delayMillis);
+	}
+
+	/**
+	 * Hands over the pending batch.
+	 *
+	 * @param batch number of the batch the hand-over has been scheduled for, -1 for whatever is pending
+	 * @return whether anything has been handed over
+	 */
+	private boolean handOver(long batch) {
+		synchronized (dispatching) {
+			List<Message> messages;
+			boolean grouping;
+			synchronized (this) {
+				if ((batch >= 0 && batch != batchNumber) || pending.isEmpty()) {
+					return false; // handed over already
+				}
+				if (pending.size() <= maxBatchSize) {
+					messages = pending;
+					pending = new ArrayList<>();
+				} else {
+					List<Message> first = pending.subList(0, maxBatchSize);
+					messages = new ArrayList<>(first);
+					first.clear();
+				}
+				batchNumber++;
+				if (!pending.isEmpty() && batch >= 0) {
+					schedule(0); // the rest has waited long enough
+				}
+				grouping = coalescing;
+			}
+			if (grouping) {
+				messages = groupByChat(messages);
+			}
+			dispatch(messages);
+			return true;
+		}
+	}
+
+	private static List<Message> groupByChat(List<Message> batch) {
+		Map<String, List<Message>> chats = new LinkedHashMap<>();
+		for (Message message : batch) {
+			chats.computeIfAbsent(message.chat, chat -> new ArrayList<>()).add(message);
+		}
+		List<Message> grouped = new ArrayList<>(batch.size());
+		for (List<Message> messages : chats.values()) {
+			grouped.addAll(messages);
+		}
+		return grouped;
+	}
+
+	/**
+	 * Encodes the batch into a direct buffer and hands it over in one call.
+	 * 
+	 * Layout in native byte order: int count, then per message int flags, long timestamp and chat, sender and content
+	 * as int length + UTF-8 bytes. The native side copies what it needs before returning, so the buffer is reused.
+	 */
+	private void dispatch(List<Message> batch) {
+		int size = batch.size();
+		int capacity = 4;
+		for (Message message : batch) {
+			capacity += 4 + 8 + 3 * 4
+					+ MAX_UTF8_BYTES_PER_CHAR * (message.chat.length() + message.sender.length() + message.content.length());
+		}
+		ByteBuffer buffer = DirectBufferPool.acquire(capacity);
+		try {
+			buffer.putInt(size);
+			for (Message message : batch) {
+				buffer.putInt(message.flags);
+				buffer.putLong(message.timestamp);
+				putString(buffer, message.chat);
+				putString(buffer, message.sender);
+				putString(buffer, message.content);
+			}
+			PurpleSignal.handleMessageBufferNatively(this.connection, buffer, buffer.position());
+		} finally {
+			DirectBufferPool.release(buffer);
+		}
+		long delivered = System.nanoTime();
+		batches.increment();
+		messages.add(size);
+		for (Message message : batch) {
+			dispatchLatency.recordNanos(delivered - message.queuedAt);
+			if (message.onDelivered != null) {
+				message.onDelivered.run();
+			}
+		}
+	}
+
+	/**
+	 * Writes the string as int length + UTF-8 without allocating. Unpaired surrogates become '?'.
+	 */
+	static void putString(ByteBuffer buffer, String string) {
+		int lengthPosition = buffer.position();
+		buffer.putInt(0); // patched below
+		int length = string.length();
+		for (int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, string.charAt(++i));
+				buffer.put((byte) (0xF0 | (codePoint >> 18)));
+				buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				buffer.put((byte) '?');
+			} else {
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+	}
+}
@@ -0,0 +1,603 @@
+package de.hehoe.purple_signal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local append-only history of all messages of an account.
+ *
+ * The history is not encrypted, so it is only kept if the account setting {@value #SETTING_KEY} is enabled.
+ *
+ * Messages are appended to segment files in the background on the {@link ConnectionRegistry}'s shared pool, so
+ * appending never blocks the caller. If writing cannot keep up, messages are dropped rather than blocking (and counted
+ * as such). Segments are read via memory mappings.
+ *
+ * The index lives in memory and is rebuilt from the segments when the store is started. It holds the messages of
+ * every conversation ordered by timestamp and an inverted index of all words in the message bodies. Queries wait until
+ * the index has been rebuilt. If the store is stopped before, the rebuild is abandoned and the messages queued meanwhile
+ * are dropped.
+ *
+ * Record format (big endian): int length of the rest, long timestamp, int flags, unsigned short length + UTF-8 chat,
+ * unsigned short length + UTF-8 sender, int length + UTF-8 body.
+ */
+public class MessageStore {
+
+	static final String SETTING_KEY = "message-store";
+	static final long MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+	static final int WRITE_BUFFER_BYTES = 1024 * 1024;
+	static final int QUEUE_CAPACITY = 65536;
+	static final int MIN_TOKEN_LENGTH = 2;
+	static final String SEGMENT_PREFIX = "segment-";
+	static final String SEGMENT_SUFFIX = ".dat";
+
+	public static class StoredMessage {
+		public final String chat;
+		public final String sender;
+		public final String body;
+		public final long timestamp;
+		public final int flags;
+
+		StoredMessage(String chat, String sender, String body, long timestamp, int flags) {
+			this.chat = chat;
+			this.sender = sender;
+			this.body = body;
+			this.timestamp = timestamp;
+			this.flags = flags;
+		}
+	}
+
+	/**
+	 * Growable array of ints. Avoids boxing – the index holds an entry per word per message.
+	 */
+	private static class IntList {
+		int[] values = new int[4];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		boolean contains(int value) {
+			return Arrays.binarySearch(values, 0, size, value) >= 0; // values are added in ascending order
+		}
+	}
+
+	/**
+	 * Record numbers of a conversation, ordered by timestamp.
+	 */
+	private static class Conversation {
+		long[] timestamps = new long[8];
+		int[] records = new int[8];
+		int size = 0;
+
+		void add(long timestamp, int record) {
+			if (size == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size * 2);
+				records = Arrays.copyOf(records, size * 2);
+			}
+			// messages usually arrive in order, out-of-order ones are moved into place
+			int position = size;
+			while (position > 0 && timestamps[position - 1] > timestamp) {
+				position--;
+			}
+			System.arraycopy(timestamps, position, timestamps, position + 1, size - position);
+			System.arraycopy(records, position, records, position + 1, size - position);
+			timestamps[position] = timestamp;
+			records[position] = record;
+			size++;
+		}
+
+		/**
+		 * @return index of the first entry not older than the timestamp
+		 */
+		int lowerBound(long timestamp) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (timestamps[middle] < timestamp) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+
+	private static class Record {
+		final byte[] chat;
+		final byte[] sender;
+		final byte[] body;
+		final long timestamp;
+		final int flags;
+		final String chatName;
+		final String bodyText;
+		long location;
+
+		Record(String chat, String sender, String body, long timestamp, int flags) {
+			this.chatName = chat;
+			this.bodyText = body;
+			this.chat = chat.getBytes(StandardCharsets.UTF_8);
+			this.sender = sender.getBytes(StandardCharsets.UTF_8);
+			this.body = body.getBytes(StandardCharsets.UTF_8);
+			this.timestamp = timestamp;
+			this.flags = flags;
+		}
+
+		int size() {
+			return 4 + 8 + 4 + 2 + chat.length + 2 + sender.length + 4 + body.length;
+		}
+	}
+
+	private final File directory;
+	private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+	private final AtomicLong appended = new AtomicLong();
+	private long written = 0; // guarded by this
+	private boolean started = false; // guarded by this
+	private boolean keepWriting = false; // guarded by this
+	private boolean writing = false; // a task is rebuilding or writing, guarded by this
+
+	// the index, guarded by indexLock
+	private final CountDownLatch loaded = new CountDownLatch(1);
+	private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+	private final Map<String, Conversation> conversations = new HashMap<>();
+	private final Map<String, IntList> words = new HashMap<>();
+	private long[] locations = new long[1024]; // record number → segment << 32 | offset
+	private int records = 0;
+	private final AtomicInteger indexed = new AtomicInteger(); // records, readable without the lock
+
+	// mappings for the readers, guarded by segments
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+	// only used by the task writing
+	private ByteBuffer writeBuffer = null;
+	private FileChannel channel = null;
+	private int segment = -1;
+	private long segmentSize = 0;
+	private boolean segmentBroken = false; // a write failed, continue in a new segment
+
+	private final LongAdder droppedMessages;
+	private final LongAdder errors;
+	private final Metrics.Histogram writeLatency;
+
+	public MessageStore(File directory, Metrics metrics) {
+		this.directory = directory;
+		this.droppedMessages = metrics.counter("store.dropped");
+		this.errors = metrics.counter("store.errors");
+		this.writeLatency = metrics.histogram("store.writeLatency");
+		metrics.gauge("store.pending", queue::size);
+		metrics.gauge("store.messages", indexed::get);
+	}
+
+	/**
+	 * Rebuilds the index in the background. Messages are written once it has been rebuilt.
+	 */
+	public synchronized void start() {
+		if (!started) {
+			started = true;
+			keepWriting = true;
+			writing = true;
+			ConnectionRegistry.execute(this::rebuild);
+		}
+	}
+
+	/**
+	 * Stops writing. Called on libpurple's main thread, so it does not wait: messages still queued are written in the
+	 * background. While the index is still being rebuilt, the rebuild is abandoned instead.
+	 */
+	public synchronized void stop() {
+		if (!keepWriting) {
+			return;
+		}
+		keepWriting = false;
+		if (!writing) {
+			writing = true;
+			ConnectionRegistry.execute(this::write); // closes the segment
+		}
+	}
+
+	/**
+	 * Queues a message for writing. Does not block.
+	 *
+	 * @return false if the message has been dropped
+	 */
+	public boolean append(String chat, String sender, String body, long timestamp, int flags) {
+		if (queue.offer(new Record(chat, sender, body, timestamp, flags))) {
+			appended.incrementAndGet();
+			synchronized (this) {
+				if (keepWriting && !writing) {
+					writing = true;
+					ConnectionRegistry.execute(this::write);
+				}
+			}
+			return true;
+		}
+		droppedMessages.increment();
+		return false;
+	}
+
+	/**
+	 * Waits until all messages appended so far have been written and indexed.
+	 */
+	public synchronized void flush() throws InterruptedException {
+		long target = appended.get();
+		while (written < target && (keepWriting || writing)) {
+			wait(100);
+		}
+	}
+
+	/**
+	 * @return messages of the conversation with from ≤ timestamp < to, oldest first, at most limit
+	 */
+	public List<StoredMessage> range(String chat, long from, long to, int limit) throws InterruptedException {
+		loaded.await();
+		List<Long> matches = new ArrayList<>();
+		indexLock.readLock().lock();
+		try {
+			Conversation conversation = conversations.get(chat);
+			if (conversation != null) {
+				for (int i = conversation.lowerBound(from); i < conversation.size && matches.size() < limit; i++) {
+					if (conversation.timestamps[i] >= to) {
+						break;
+					}
+					matches.add(locations[conversation.records[i]]);
+				}
+			}
+		} finally {
+			indexLock.readLock().unlock();
+		}
+		return read(matches);
+	}
+
+	/**
+	 * @return messages containing all words of the query, newest first, at most limit
+	 */
+	public List<StoredMessage> search(String query, int limit) throws InterruptedException {
+		loaded.await();
+		Set<String> tokens = tokenize(query);
+		if (tokens.isEmpty()) {
+			return new ArrayList<>();
+		}
+		List<Long> matches = new ArrayList<>();
+		indexLock.readLock().lock();
+		try {
+			List<IntList> postings = new ArrayList<>();
+			IntList shortest = null;
+			for (String token : tokens) {
+				IntList posting = words.get(token);
+				if (posting == null) {
+					return new ArrayList<>();
+				}
+				postings.add(posting);
+				if (shortest == null || posting.size < shortest.size) {
+					shortest = posting;
+				}
+			}
+			for (int i = shortest.size - 1; i >= 0 && matches.size() < limit; i--) {
+				int record = shortest.values[i];
+				boolean all = true;
+				for (IntList posting : postings) {
+					if (posting != shortest && !posting.contains(record)) {
+						all = false;
+						break;
+					}
+				}
+				if (all) {
+					matches.add(locations[record]);
+				}
+			}
+		} finally {
+			indexLock.readLock().unlock();
+		}
+		return read(matches);
+	}
+
+	private List<StoredMessage> read(List<Long> matches) {
+		List<StoredMessage> result = new ArrayList<>(matches.size());
+		for (long location : matches) {
+			result.add(readRecord(location));
+		}
+		return result;
+	}
+
+	private void rebuild() {
+		boolean complete = false;
+		try {
+			indexLock.writeLock().lock();
+			try {
+				complete = load();
+			} finally {
+				indexLock.writeLock().unlock();
+				loaded.countDown(); // queries would not return anything useful, but they should return
+			}
+		} catch (IOException e) {
+			errors.increment();
+			PurpleSignal.logNatively(PurpleSignal.DEBUG_LEVEL_INFO, "Message store is not available: " + e);
+		}
+		if (!complete) {
+			droppedMessages.add(queue.size());
+			queue.clear();
+			synchronized (this) {
+				keepWriting = false;
+				writing = false;
+				notifyAll();
+			}
+			return;
+		}
+		write();
+	}
+
+	/**
+	 * Writes the messages queued until there are no more. There is at most one such task per store at a time.
+	 */
+	private void write() {
+		if (writeBuffer == null) {
+			writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+		}
+		ByteBuffer buffer = writeBuffer;
+		List<Record> batch = new ArrayList<>();
+		while (true) {
+			batch.clear();
+			queue.drainTo(batch);
+			if (batch.isEmpty()) {
+				boolean close;
+				synchronized (this) {
+					if (!queue.isEmpty()) {
+						continue; // appended meanwhile
+					}
+					writing = false;
+					close = !keepWriting;
+					notifyAll();
+				}
+				if (close) {
+					close();
+				}
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				for (Record record : batch) {
+					int size = record.size();
+					if (segment < 0 || segmentBroken || (segmentSize + size > MAX_SEGMENT_BYTES && segmentSize > 0)) {
+						flush(buffer);
+						openSegment(segment + 1);
+					}
+					if (size > buffer.remaining()) {
+						flush(buffer);
+					}
+					ByteBuffer target = size > buffer.capacity() ? ByteBuffer.allocate(size) : buffer;
+					record.location = ((long) segment << 32) | segmentSize;
+					target.putInt(size - 4);
+					target.putLong(record.timestamp);
+					target.putInt(record.flags);
+					target.putShort((short) record.chat.length);
+					target.put(record.chat);
+					target.putShort((short) record.sender.length);
+					target.put(record.sender);
+					target.putInt(record.body.length);
+					target.put(record.body);
+					segmentSize += size;
+					if (target != buffer) {
+						flush(buffer);
+						flush(target);
+					}
+				}
+				flush(buffer);
+			} catch (IOException e) {
+				errors.increment();
+				PurpleSignal.logNatively(PurpleSignal.DEBUG_LEVEL_INFO,
+						"Unable to write " + batch.size() + " messages to the message store: " + e);
+				buffer.clear();
+				segmentBroken = true;
+				synchronized (this) {
+					written += batch.size(); // lost, but nobody should wait for them
+					notifyAll();
+				}
+				continue;
+			}
+			indexLock.writeLock().lock();
+			try {
+				for (Record record : batch) {
+					index(record.chatName, record.bodyText, record.timestamp, record.location);
+				}
+			} finally {
+				indexLock.writeLock().unlock();
+			}
+			writeLatency.recordNanos(System.nanoTime() - start);
+			synchronized (this) {
+				written += batch.size();
+				notifyAll();
+			}
+		}
+	}
+
+	private void close() {
+		try {
+			if (channel != null) {
+				channel.force(false);
+				channel.close();
+				channel = null;
+			}
+		} catch (IOException e) {
+			// I don't care about what dying stores have to say
+		}
+	}
+
+	private void flush(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void openSegment(int number) throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+		File file = segmentFile(number);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		segment = number;
+		segmentSize = channel.size();
+		segmentBroken = false;
+	}
+
+	private File segmentFile(int number) {
+		return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * Reads all segments and indexes their records. A record cut off by a crash ends the last segment and is removed.
+	 *
+	 * @return false if the store has been stopped meanwhile
+	 */
+	private boolean load() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory + ".");
+		}
+		int number = 0;
+		while (segmentFile(number).isFile()) {
+			synchronized (this) {
+				if (!keepWriting) {
+					return false;
+				}
+			}
+			File file = segmentFile(number);
+			long valid = 0;
+			try (FileChannel reader = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer mapped = reader.map(FileChannel.MapMode.READ_ONLY, 0, reader.size());
+				while (mapped.remaining() >= 4) {
+					int offset = mapped.position();
+					int length = mapped.getInt();
+					if (length < 20 || length > mapped.remaining()) {
+						break;
+					}
+					ByteBuffer record = mapped.slice();
+					record.limit(length);
+					try {
+						long timestamp = record.getLong();
+						record.getInt(); // flags
+						String chat = readString(record, record.getShort() & 0xFFFF);
+						int senderLength = record.getShort() & 0xFFFF;
+						record.position(record.position() + senderLength);
+						String body = readString(record, record.getInt());
+						index(chat, body, timestamp, ((long) number << 32) | offset);
+					} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+						break; // lengths do not add up
+					}
+					mapped.position(offset + 4 + length);
+					valid = mapped.position();
+				}
+			}
+			if (valid < file.length()) {
+				try (FileChannel truncater = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+					truncater.truncate(valid);
+				}
+			}
+			number++;
+		}
+		if (number > 0) {
+			openSegment(number - 1); // continue writing to the last segment
+		}
+		return true;
+	}
+
+	private void index(String chat, String body, long timestamp, long location) {
+		if (records == locations.length) {
+			locations = Arrays.copyOf(locations, records * 2);
+		}
+		int record = records++;
+		indexed.set(records);
+		locations[record] = location;
+		conversations.computeIfAbsent(chat, c -> new Conversation()).add(timestamp, record);
+		for (String token : tokenize(body)) {
+			words.computeIfAbsent(token, t -> new IntList()).add(record);
+		}
+	}
+
+	private StoredMessage readRecord(long location) {
+		int number = (int) (location >>> 32);
+		int offset = (int) location;
+		ByteBuffer mapped = mapping(number, offset).duplicate();
+		mapped.position(offset + 4);
+		long timestamp = mapped.getLong();
+		int flags = mapped.getInt();
+		String chat = readString(mapped, mapped.getShort() & 0xFFFF);
+		String sender = readString(mapped, mapped.getShort() & 0xFFFF);
+		String body = readString(mapped, mapped.getInt());
+		return new StoredMessage(chat, sender, body, timestamp, flags);
+	}
+
+	/**
+	 * @return a mapping of the segment which contains the record at the offset, re-mapped if the segment has grown
+	 */
+	private MappedByteBuffer mapping(int number, int offset) {
+		synchronized (segments) {
+			while (segments.size() <= number) {
+				segments.add(null);
+			}
+			MappedByteBuffer mapped = segments.get(number);
+			if (mapped == null || mapped.capacity() < offset + 4 || mapped.capacity() < offset + 4 + mapped.getInt(offset)) {
+				try (FileChannel reader = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.READ)) {
+					mapped = reader.map(FileChannel.MapMode.READ_ONLY, 0, reader.size());
+				} catch (IOException e) {
+					throw new IllegalStateException("Unable to map " + segmentFile(number) + ".", e);
+				}
+				segments.set(number, mapped);
+			}
+			return mapped;
+		}
+	}
+
+	private static String readString(ByteBuffer buffer, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Splits text into lower-case words. Everything which is neither letter nor digit separates words.
+	 */
+	static Set<String> tokenize(String text) {
+		Set<String> tokens = new LinkedHashSet<>();
+		StringBuilder token = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				token.append(Character.toLowerCase(c));
+			} else if (token.length() > 0) {
+				if (token.length() >= MIN_TOKEN_LENGTH) {
+					tokens.add(token.toString());
+				}
+				token.setLength(0);
+			}
+		}
+		return tokens;
+	}
+}
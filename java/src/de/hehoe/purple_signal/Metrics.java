@@ -0,0 +1,103 @@
+package de.hehoe.purple_signal;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and gauges describing what a connection is doing.
+ *
+ * Recording does not take any locks. Callers should look up their counters and histograms once and keep the
+ * references so the hot path does not go through the map. Nothing is computed until {@link #dump()} is called.
+ */
+public class Metrics {
+
+	/**
+	 * Histogram with power-of-two buckets in microseconds. Bucket i counts values below 2^i µs.
+	 */
+	public static class Histogram {
+		static final int BUCKETS = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		public void recordNanos(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			sum.add(micros);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * @return upper bound of the bucket containing the percentile in µs
+		 */
+		public long percentile(double percentile) {
+			long total = 0;
+			long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = buckets.get(i);
+				total += snapshot[i];
+			}
+			long threshold = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if (seen >= threshold && seen > 0) {
+					return 1L << i;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			long n = count.sum();
+			if (n == 0) {
+				return "count=0";
+			}
+			return "count=" + n + " mean=" + (sum.sum() / n) + "µs p50<" + percentile(0.5) + "µs p99<"
+					+ percentile(0.99) + "µs max<" + percentile(1.0) + "µs";
+		}
+	}
+
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, n -> new LongAdder());
+	}
+
+	public Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, n -> new Histogram());
+	}
+
+	/**
+	 * Registers a value which is read only when dumping, e.g. a queue depth.
+	 */
+	public void gauge(String name, LongSupplier supplier) {
+		gauges.put(name, supplier);
+	}
+
+	/**
+	 * @return all metrics, one per line, sorted by name
+	 */
+	public String dump() {
+		Map<String, String> lines = new TreeMap<>();
+		counters.forEach((name, counter) -> lines.put(name, Long.toString(counter.sum())));
+		histograms.forEach((name, histogram) -> lines.put(name, histogram.toString()));
+		gauges.forEach((name, gauge) -> lines.put(name, Long.toString(gauge.getAsLong())));
+		StringBuilder out = new StringBuilder();
+		lines.forEach((name, value) -> out.append(name).append(": ").append(value).append('\n'));
+		return out.toString();
+	}
+}
@@ -3,44 +3,137 @@ package de.hehoe.purple_signal;
 import java.security.Security;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
-import org.asamk.signal.manager.AttachmentInvalidException;
-import org.asamk.signal.manager.GroupNotFoundException;
 import org.asamk.signal.manager.Manager;
 import org.asamk.signal.manager.Manager.ReceiveMessageHandler;
-import org.asamk.signal.manager.NotAGroupMemberException;
 import org.asamk.signal.manager.ProvisioningManager;
 import org.asamk.signal.manager.ServiceConfig;
 import org.asamk.signal.manager.UserAlreadyExists;
 import org.asamk.signal.storage.SignalAccount;
 import org.asamk.signal.util.SecurityProvider;
-import org.asamk.signal.util.Util;
+import org.signal.zkgroup.InvalidInputException;
 import org.whispersystems.libsignal.InvalidKeyException;
-import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.SignalServiceMessageReceiver;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentStream;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroup;
+import org.whispersystems.signalservice.api.messages.SignalServiceGroupContext;
+import org.whispersystems.signalservice.api.messages.SignalServiceTypingMessage;
+import org.whispersystems.signalservice.api.messages.multidevice.ContactsMessage;
+import org.whispersystems.signalservice.api.messages.multidevice.DeviceContact;
+import org.whispersystems.signalservice.api.messages.multidevice.DeviceContactsInputStream;
+import org.whispersystems.signalservice.api.messages.multidevice.DeviceGroup;
+import org.whispersystems.signalservice.api.messages.multidevice.DeviceGroupsInputStream;
 import org.whispersystems.signalservice.api.messages.multidevice.SentTranscriptMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.api.push.exceptions.AuthorizationFailedException;
-import org.whispersystems.signalservice.api.push.exceptions.EncapsulatedExceptions;
-import org.whispersystems.signalservice.api.util.InvalidNumberException;
+import org.whispersystems.signalservice.api.util.UptimeSleepTimer;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
-import org.whispersystems.util.Base64;
 import org.asamk.signal.util.GroupIdFormatException;
 
-public class PurpleSignal implements ReceiveMessageHandler, Runnable {
+public class PurpleSignal implements ReceiveMessageHandler, ConnectionRegistry.Receiver {
+
+	static final long MIN_IDLE_TIMEOUT_SECONDS = 60;
+	static final long MAX_IDLE_TIMEOUT_SECONDS = 600;
+	static final long SATURATED_TIMEOUT_SECONDS = 10;
+	static final long CATCH_UP_TIMEOUT_SECONDS = 2;
+	static final long SATURATED_SLICE_ENVELOPES = 250; // a slice ends after this many envelopes if others are waiting
+	static final long WATCHDOG_GRACE_SECONDS = 30;
+	static final long MIN_BACKOFF_MILLIS = 1000;
+	static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+	static final int MAX_ATTACHMENT_SIZE = 150 * 1024 * 1024; // as in signal-cli
+
+	/**
+	 * Where the envelopes of a slice come from. This is the Manager, except in the load test.
+	 */
+	interface EnvelopeSource {
+		/**
+		 * Hands envelopes to the handler until none arrived for the timeout.
+		 */
+		void receive(PurpleSignal handler, long timeoutMillis, boolean returnOnTimeout, boolean ignoreAttachments)
+				throws IOException;
+
+		/**
+		 * Makes the running receive return before its timeout. Called by the handler.
+		 * 
+		 * @return false if the slice cannot be ended early
+		 */
+		boolean endSlice();
+	}
 
-	private Manager manager = null;
+	private volatile Manager manager = null;
 	private long connection = 0;
-	private boolean keepReceiving = false;
-	private Thread receiverThread = null;
+	private volatile boolean keepReceiving = false;
+	private volatile boolean caughtUp = false;
+	private Thread linkThread = null;
+	private Thread connectorThread = null;
+	private volatile boolean closed = false;
+	private final long connectStart = System.currentTimeMillis();
+	private boolean firstEnvelopeReceived = false;
+	private static boolean securityProvidersInstalled = false;
+	private final MessageBatcher batcher;
+	private final ReceiptSender receiptSender;
+	private final StatusThrottle statusThrottle;
+	private final SendPipeline sendPipeline;
+	private final boolean sendsThroughManager;
+	private final EnvelopeSource envelopeSource;
+	private final AttachmentDownloader attachmentDownloader;
+	private SignalServiceMessageReceiver attachmentReceiver = null; // created on first download
+	private final MessageStore messageStore; // null unless enabled
+	private final RosterSync rosterSync;
+	private final GroupIdCache groupIdCache = new GroupIdCache();
+	private final Metrics metrics = new Metrics();
+	private final GroupV2Cache groupV2Cache;
+	private final LongAdder dataMessages = metrics.counter("envelopes.data");
+	private final LongAdder syncMessages = metrics.counter("envelopes.sync");
+	private final LongAdder typingMessages = metrics.counter("envelopes.typing");
+	private final LongAdder receiptMessages = metrics.counter("envelopes.receipt");
+	private final LongAdder unknownMessages = metrics.counter("envelopes.unknown");
+	private final LongAdder serverReceipts = metrics.counter("envelopes.serverReceipt");
+	private final LongAdder undecryptable = metrics.counter("envelopes.undecryptable");
+	private final LongAdder envelopeErrors = metrics.counter("envelopes.errors");
+	private final LongAdder duplicates = metrics.counter("envelopes.duplicates");
+	private final DuplicateFilter duplicateFilter = new DuplicateFilter();
+	private final LongAdder reconnects = metrics.counter("receiver.reconnects"); // each slice re-connects the websocket
+	private final LongAdder idleWakeups = metrics.counter("receiver.idleWakeups");
+	private final LongAdder receiveErrors = metrics.counter("receiver.errors");
+	private final LongAdder wedgedSlices = metrics.counter("receiver.wedged");
+	private final LongAdder endedSlices = metrics.counter("receiver.endedEarly");
+	private boolean catchingUp = false;
+	private long caughtUpEnvelopes = 0; // across all slices catching up
+	private long catchUpStart = 0; // 0 until catching up starts
+	private long sliceEnvelopes = 0;
+	private long sliceStart = System.nanoTime();
+	private boolean sliceEnded = false;
+	private long idleTimeout = MIN_IDLE_TIMEOUT_SECONDS;
+	private volatile long sliceTimeout = MIN_IDLE_TIMEOUT_SECONDS;
+	private volatile long lastActivity = System.nanoTime();
+	private int consecutiveFailures = 0;
+	private volatile Trace.Level traceLevel = Trace.Level.OFF;
 	private String username = null;
 	private final SignalServiceConfiguration serviceConfiguration;
 	private final String dataPath;
@@ -51,42 +144,128 @@ public class PurpleSignal implements ReceiveMessageHandler, Runnable {
 
 	public PurpleSignal(long connection, String username, String dataPath)
 			throws IOException, TimeoutException, InvalidKeyException, UserAlreadyExists {
-		serviceConfiguration = ServiceConfig.createDefaultServiceConfiguration(BaseConfig.USER_AGENT);
+		this(connection, username, dataPath, ServiceConfig.createDefaultServiceConfiguration(BaseConfig.USER_AGENT));
+
+		installSecurityProviders();
 
+		if (!SignalAccount.userExists(this.connection)) {
+			askRegisterOrLinkNatively(this.connection);
+		} else {
+			// loading the account and checking its state may take a while – libpurple's main thread should not wait
+			connectorThread = new Thread(this::connect);
+			connectorThread.setName("Connector");
+			connectorThread.setDaemon(true);
+			connectorThread.start();
+		}
+	}
+
+	/**
+	 * Sets up an instance without connecting to the service.
+	 * Benchmarks use this directly and feed messages to the handlers.
+	 */
+	PurpleSignal(long connection, String username, String dataPath, SignalServiceConfiguration serviceConfiguration) {
+		this(connection, username, dataPath, serviceConfiguration, null, null);
+	}
+
+	/**
+	 * As above, with stand-ins for receiving from and sending to the service. Null uses the Manager.
+	 */
+	PurpleSignal(long connection, String username, String dataPath, SignalServiceConfiguration serviceConfiguration,
+			EnvelopeSource envelopeSource, SendPipeline.Transport transport) {
+		this.serviceConfiguration = serviceConfiguration;
 		this.connection = connection;
 		this.username = username;
 		this.keepReceiving = false;
 		this.dataPath = dataPath;
+		ConnectionRegistry.register(username, connection);
+		this.batcher = new MessageBatcher(connection, this.metrics);
+		this.groupV2Cache = new GroupV2Cache(serviceConfiguration, this.metrics);
+		this.receiptSender = new ReceiptSender((recipient, timestamps) -> {
+			Manager m = this.manager;
+			if (m != null) {
+				m.sendReceipt(recipient, timestamps, SignalServiceReceiptMessage.Type.READ); // one receipt message for all timestamps
+			}
+		}, this.metrics);
+		this.statusThrottle = new StatusThrottle(new StatusThrottle.Sink() {
+			@Override
+			public void typing(String chat, boolean typing) {
+				handleTypingNatively(connection, chat, typing);
+			}
 
-		// stolen from signald/src/main/java/io/finn/signald/Main.java
-		// Workaround for BKS truststore
-		Security.insertProviderAt(new SecurityProvider(), 1);
-		Security.addProvider(new BouncyCastleProvider());
+			@Override
+			public void receipt(String chat, int type, long timestamp) {
+				handleReceiptNatively(connection, chat, type, timestamp);
+			}
+		}, this.metrics);
+		this.envelopeSource = envelopeSource != null ? envelopeSource : new ManagerSource();
+		this.sendsThroughManager = transport == null;
+		this.sendPipeline = new SendPipeline(connection, transport != null ? transport : this::resolveRecipient,
+				this.metrics);
+		this.rosterSync = new RosterSync(connection, new File(new File(dataPath, "roster"), username), this.metrics);
+		// opt-in: the history is kept in plain text
+		this.messageStore = getSettingsBooleanNatively(connection, MessageStore.SETTING_KEY, false)
+				? new MessageStore(new File(new File(dataPath, "history"), username), this.metrics)
+				: null;
+		this.attachmentDownloader = new AttachmentDownloader(new File(new File(dataPath, "attachments"), username),
+				(pointer, encrypted) -> getAttachmentReceiver().retrieveAttachment(pointer, encrypted,
+						MAX_ATTACHMENT_SIZE),
+				this.metrics);
+	}
 
-		if (!SignalAccount.userExists(this.connection)) {
-			askRegisterOrLinkNatively(this.connection);
-		} else {
+	/**
+	 * Attachments are fetched from the CDN, which needs no credentials. A receiver of our own saves going through the
+	 * Manager, which does not offer to stream them.
+	 */
+	private synchronized SignalServiceMessageReceiver getAttachmentReceiver() throws IOException {
+		if (this.attachmentReceiver == null) {
+			if (this.serviceConfiguration == null) {
+				throw new IOException("Not connected to a service.");
+			}
+			this.attachmentReceiver = new SignalServiceMessageReceiver(this.serviceConfiguration, null, null, null,
+					SignalServiceAddress.DEFAULT_DEVICE_ID, null, BaseConfig.USER_AGENT, null, new UptimeSleepTimer(),
+					null);
+		}
+		return this.attachmentReceiver;
+	}
+
+	private static synchronized void installSecurityProviders() {
+		if (!securityProvidersInstalled) {
+			// stolen from signald/src/main/java/io/finn/signald/Main.java
+			// Workaround for BKS truststore
+			Security.insertProviderAt(new SecurityProvider(), 1);
+			Security.addProvider(new BouncyCastleProvider());
+			securityProvidersInstalled = true;
+		}
+	}
 
+	private void connect() {
+		try {
 			// the rest is adapted from signal-cli/src/main/java/org/asamk/signal/Main.java
 
-			this.manager = Manager.init(username, dataPath, serviceConfiguration, BaseConfig.USER_AGENT);
-			// exception may bubble to C++
-
-			{
-				Manager m = this.manager;
-				try {
-					m.checkAccountState();
-				} catch (AuthorizationFailedException e) {
-					logNatively(DEBUG_LEVEL_INFO, "Authorization failed, was the number registered elsewhere?");
-					askRegisterOrLinkNatively(this.connection);
-				}
-				// other exceptions may bubble to C++
+			long start = System.currentTimeMillis();
+			Manager m = Manager.init(username, dataPath, serviceConfiguration, BaseConfig.USER_AGENT);
+			this.manager = m;
+			long initialized = System.currentTimeMillis();
+
+			try {
+				m.checkAccountState();
+			} catch (AuthorizationFailedException e) {
+				logNatively(DEBUG_LEVEL_INFO, "Authorization failed, was the number registered elsewhere?");
+				askRegisterOrLinkNatively(this.connection);
 			}
+			long checked = System.currentTimeMillis();
+			logNatively(DEBUG_LEVEL_INFO, "Start-up timing: loading account " + (initialized - start)
+					+ " ms, checking account state " + (checked - initialized) + " ms.");
 
-			logNatively(DEBUG_LEVEL_INFO, "User " + manager.getUsername() + " is authorized.");
+			if (this.closed) {
+				return; // connection has been closed in the meantime
+			}
+			logNatively(DEBUG_LEVEL_INFO, "User " + m.getUsername() + " is authorized.");
 			startReceiving();
 
 			// TODO: signal account "connected"
+		} catch (Exception e) {
+			handleErrorNatively(this.connection, "Exception while connecting: " + e.getMessage());
 		}
 	}
 
@@ -95,7 +274,7 @@ public class PurpleSignal implements ReceiveMessageHandler, Runnable {
 				BaseConfig.USER_AGENT);
 		String deviceLinkUri = provisioningManager.getDeviceLinkUri();
 		handleQRCodeNatively(this.connection, deviceLinkUri);
-		receiverThread = new Thread(() -> {
+		linkThread = new Thread(() -> {
 			String linkedUsername = null;
 			try {
 				linkedUsername = provisioningManager.finishDeviceLink("purple-signal");
@@ -111,9 +290,9 @@ public class PurpleSignal implements ReceiveMessageHandler, Runnable {
 			}
 
 		});
-		receiverThread.setName("finishDeviceLink");
-		receiverThread.setDaemon(true);
-		receiverThread.start();
+		linkThread.setName("finishDeviceLink");
+		linkThread.setDaemon(true);
+		linkThread.start();
 	}
 
 	public void registerAccount(boolean voiceVerification) throws IOException {
@@ -129,45 +308,252 @@ public class PurpleSignal implements ReceiveMessageHandler, Runnable {
 		handleErrorNatively(this.connection, "Verification finished. Reconnect needed.");
 	}
 
-	public void run() {
-		logNatively(DEBUG_LEVEL_INFO, "Starting to listen for messages…");
-		boolean ignoreAttachments = true;
+	/**
+	 * Receives messages for a while. Called repeatedly by the ConnectionRegistry's workers.
+	 * 
+	 * The time to wait for a message grows while the account is idle so quiet accounts re-connect less often. It is
+	 * reset as soon as messages arrive. While other accounts are waiting for a worker, a slice also ends after
+	 * {@value #SATURATED_TIMEOUT_SECONDS} s or {@value #SATURATED_SLICE_ENVELOPES} envelopes, even if messages keep
+	 * arriving. Errors are assumed to be transient: receiving is retried with an exponentially growing, jittered delay.
+	 * 
+	 * @return milliseconds to wait before the next slice
+	 */
+	public long receive() {
+		boolean ignoreAttachments = true; // the Manager would download them right here, they are handled by the
+											// attachmentDownloader instead
 		boolean returnOnTimeout = true; // it looks like setting this to false means "listen for new messages
 										// forever".
 		// There seems to be a non-daemon thread to be involved somewhere as the Java VM
 		// will not ever shut down.
-		long timeout = 60; // Seconds to wait for an incoming message. After the timeout occurred, a
-							// re-connect happens silently.
-		// TODO: Find out how this affects what.
+		long timeout = this.idleTimeout; // Seconds to wait for an incoming message. After the timeout occurred, a
+											// re-connect happens silently.
+		if (ConnectionRegistry.isSaturated()) {
+			timeout = Math.min(timeout, SATURATED_TIMEOUT_SECONDS); // other accounts are waiting for a worker
+		}
+		this.sliceTimeout = this.caughtUp ? timeout : CATCH_UP_TIMEOUT_SECONDS;
+		this.sliceEnvelopes = 0;
+		this.sliceEnded = false;
+		this.sliceStart = System.nanoTime();
+		this.lastActivity = this.sliceStart;
+		reconnects.increment();
 		try {
-			while (this.keepReceiving) {
-				this.manager.receiveMessages((long) (timeout * 1000), TimeUnit.MILLISECONDS, returnOnTimeout,
-						ignoreAttachments, this);
+			this.traceLevel = Trace.configure(this.connection); // the trace level may be changed at runtime
+			this.sendPipeline.configure(); // so may the coalescing delay
+			if (!this.caughtUp) {
+				this.caughtUp = catchUp(ignoreAttachments); // continues in the next slice if ended early
+			} else {
+				receiveSlice(timeout, returnOnTimeout, ignoreAttachments);
+				if (this.sliceEnvelopes == 0) {
+					idleWakeups.increment();
+					this.idleTimeout = Math.min(this.idleTimeout * 2, MAX_IDLE_TIMEOUT_SECONDS);
+				} else {
+					this.idleTimeout = MIN_IDLE_TIMEOUT_SECONDS;
+				}
 			}
-		} catch (Exception e) {
-			handleErrorNatively(this.connection, "Exception while waiting for message: " + e.getMessage());
+			this.consecutiveFailures = 0;
+			if (this.keepReceiving) {
+				return 0;
+			}
+		} catch (AuthorizationFailedException e) {
+			receiveErrors.increment();
+			handleErrorNatively(this.connection, "Authorization failed while waiting for message: " + e.getMessage());
 		} catch (Throwable t) {
-			handleErrorNatively(this.connection, "Unhandled exception while waiting for message.");
-			t.printStackTrace();
+			receiveErrors.increment();
+			if (this.keepReceiving) {
+				long delay = backoffMillis();
+				logNatively(DEBUG_LEVEL_INFO, "Exception while waiting for message: " + t + ". Trying again in " + delay
+						+ " ms.");
+				return delay;
+			}
 		}
 		logNatively(DEBUG_LEVEL_INFO, "Receiving has finished.");
+		return ConnectionRegistry.STOP;
+	}
+
+	private void receiveSlice(long timeoutSeconds, boolean returnOnTimeout, boolean ignoreAttachments)
+			throws IOException {
+		try {
+			this.envelopeSource.receive(this, TimeUnit.SECONDS.toMillis(timeoutSeconds), returnOnTimeout,
+					ignoreAttachments);
+		} catch (IOException e) {
+			if (!this.sliceEnded) {
+				throw e;
+			}
+			// the websocket has been shut down by endSlice()
+		}
+	}
+
+	private class ManagerSource implements EnvelopeSource {
+		@Override
+		public void receive(PurpleSignal handler, long timeoutMillis, boolean returnOnTimeout,
+				boolean ignoreAttachments) throws IOException {
+			connectedManager().receiveMessages(timeoutMillis, TimeUnit.MILLISECONDS, returnOnTimeout,
+					ignoreAttachments, handler);
+		}
+
+		/**
+		 * receiveMessages only returns by itself after no message arrived for its timeout, so the Manager's websocket
+		 * is shut down. The envelope being handled has been acknowledged already, envelopes still buffered are not
+		 * and will be delivered again on the next connection.
+		 */
+		@Override
+		public boolean endSlice() {
+			Manager m = manager;
+			if (m == null) {
+				return false;
+			}
+			m.shutdownMessagePipe();
+			return true;
+		}
+	}
+
+	/**
+	 * Called after each envelope. Ends the slice if it has used up its share while other accounts are waiting.
+	 */
+	private void checkSliceBudget() {
+		if (this.sliceEnded || !ConnectionRegistry.isSaturated()) {
+			return;
+		}
+		if (this.sliceEnvelopes >= SATURATED_SLICE_ENVELOPES
+				|| System.nanoTime() - this.sliceStart >= TimeUnit.SECONDS.toNanos(SATURATED_TIMEOUT_SECONDS)) {
+			endSlice();
+		}
+	}
+
+	/**
+	 * Makes the running receive return before its timeout.
+	 */
+	private void endSlice() {
+		this.sliceEnded = true; // set first, ending the slice may make the source throw
+		if (this.envelopeSource.endSlice()) {
+			endedSlices.increment();
+		} else {
+			this.sliceEnded = false; // the slice ends at the next timeout
+		}
+	}
+
+	private long backoffMillis() {
+		int exponent = Math.min(this.consecutiveFailures++, 20);
+		long delay = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << exponent);
+		// jitter keeps accounts which lost their connection at the same time from retrying in lockstep
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	/**
+	 * A slice ends after no message arrived for its timeout. If it has been silent for much longer, the websocket is
+	 * assumed to be stuck.
+	 */
+	public boolean isWedged() {
+		long silence = System.nanoTime() - this.lastActivity;
+		if (silence > TimeUnit.SECONDS.toNanos(this.sliceTimeout + WATCHDOG_GRACE_SECONDS)) {
+			wedgedSlices.increment();
+			logNatively(DEBUG_LEVEL_INFO, "Receiver has been silent for " + TimeUnit.NANOSECONDS.toSeconds(silence)
+					+ " s. Interrupting it.");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drains the messages queued on the server while this account was offline.
+	 * 
+	 * The queue counts as empty as soon as no message arrives for a short while. In the meantime, messages are not
+	 * printed, receipts are deferred until the queue is empty and messages are handed to the UI grouped by conversation.
+	 * 
+	 * The queue may take several slices to drain. The envelopes and the time are counted from the first one.
+	 * 
+	 * @return false if the slice ended before the queue was empty
+	 */
+	private boolean catchUp(boolean ignoreAttachments) throws IOException {
+		if (this.catchUpStart == 0) {
+			logNatively(DEBUG_LEVEL_INFO, "Starting to listen for messages…");
+			logNatively(DEBUG_LEVEL_INFO, "Catching up on messages queued while offline…");
+			this.catchUpStart = System.currentTimeMillis();
+			this.caughtUpEnvelopes = 0;
+		}
+		this.catchingUp = true;
+		this.batcher.setCoalescing(true);
+		this.receiptSender.setPaused(true);
+		try {
+			// waits this long for the next queued message before considering the queue empty
+			receiveSlice(CATCH_UP_TIMEOUT_SECONDS, true, ignoreAttachments);
+		} finally {
+			this.catchingUp = false;
+			this.batcher.setCoalescing(false);
+			this.receiptSender.setPaused(false);
+		}
+		long duration = System.currentTimeMillis() - this.catchUpStart;
+		if (this.sliceEnded) {
+			logNatively(DEBUG_LEVEL_INFO, "Caught up on " + this.caughtUpEnvelopes + " envelopes in " + duration
+					+ " ms so far. Continuing after other accounts had their turn.");
+			return false;
+		}
+		logNatively(DEBUG_LEVEL_INFO,
+				"Caught up on " + this.caughtUpEnvelopes + " envelopes in " + duration + " ms. Listening for new messages.");
+		logNatively(DEBUG_LEVEL_INFO, "Cache statistics: " + this.groupIdCache);
+		return true;
+	}
+
+	/**
+	 * @return all metrics of this connection, one per line
+	 */
+	public String getMetrics() {
+		return this.metrics.dump() + "groupIdCache: " + this.groupIdCache + "\n" + "groupV2Cache: " + this.groupV2Cache
+				+ "\n";
+	}
+
+	/**
+	 * Called by the plug-in on libpurple's main thread once roster changes have been applied to the buddy list.
+	 */
+	public void handleRosterApplied(long generation) {
+		this.rosterSync.confirm(generation);
+	}
+
+	/**
+	 * The load test reads the histograms directly.
+	 */
+	Metrics getMetricsRegistry() {
+		return this.metrics;
+	}
+
+	/**
+	 * Whether the messages queued while offline have been received.
+	 */
+	boolean isCaughtUp() {
+		return this.caughtUp;
+	}
+
+	void startDispatching() {
+		batcher.start();
+		receiptSender.start();
+		statusThrottle.start();
+		if (messageStore != null) {
+			messageStore.start();
+		}
 	}
 
-	private void startReceiving() {
-		if (receiverThread != null) {
+	void startReceiving() {
+		this.keepReceiving = true;
+		startDispatching();
+		if (!ConnectionRegistry.startReceiving(this.connection, this)) {
 			handleErrorNatively(this.connection,
 					"Called startReceiving() on a connection already receiving. This is a bug.");
-		} else {
-			this.keepReceiving = true;
-			receiverThread = new Thread(this);
-			receiverThread.setName("Receiver");
-			receiverThread.setDaemon(true);
-			receiverThread.start();
 		}
 	}
 
 	public void stopReceiving() {
+		this.closed = true;
 		this.keepReceiving = false;
+		if (connectorThread != null) {
+			try {
+				connectorThread.join();
+			} catch (InterruptedException e) {
+				// I don't care about what dying connections have to say
+			}
+		}
+		this.receiptSender.stop();
+		this.sendPipeline.stop();
+		this.attachmentDownloader.stop();
 		if (this.manager != null) {
 			try {
 				this.manager.close();
@@ -176,27 +562,38 @@ public class PurpleSignal implements ReceiveMessageHandler, Runnable {
 				// I don't care about what dying managers have to say
 			}
 		}
-		if (receiverThread != null) {
+		ConnectionRegistry.stopReceiving(this.connection);
+		if (linkThread != null) {
 			try {
-				receiverThread.join();
+				linkThread.join();
 			} catch (InterruptedException e) {
 				// I don't care about what dying connections have to say
 			}
 		}
+		batcher.stop();
+		statusThrottle.stop();
+		if (messageStore != null) {
+			messageStore.stop();
+		}
+		ConnectionRegistry.unregister(this.username, this.connection);
+		logNatively(DEBUG_LEVEL_INFO, "Metrics at close:\n" + getMetrics());
 	}
 
 	@Override
 	public void handleMessage(SignalServiceEnvelope envelope, SignalServiceContent content, Throwable exception) {
-		logNatively(DEBUG_LEVEL_INFO, "RECEIVED SOMETHING!");
+		envelopeArrived();
 		// stolen from signald/src/main/java/io/finn/signald/MessageReceiver.java and
 		// signal-cli/src/main/java/org/asamk/signal/JsonMessageEnvelope.java and
 		// signal-cli/src/main/java/org/asamk/signal/ReceiveMessageHandler.java
 		if (exception != null) {
+			envelopeErrors.increment();
 			handleErrorNatively(this.connection, "Exception while handling message: " + exception.getMessage());
 		} else if (envelope == null) {
 			handleErrorNatively(this.connection, "Handling null envelope."); // this should never happen
 		} else {
-			SignalMessagePrinter.printEnvelope(envelope);
+			if (!this.catchingUp && this.traceLevel.includes(Trace.Level.BASIC)) {
+				SignalMessagePrinter.printEnvelope(envelope);
+			}
 			String source = null;
 			if (envelope.isUnidentifiedSender()) {
 				logNatively(DEBUG_LEVEL_INFO, "Envelope shows unidentified sender. Using sender from content.");
@@ -207,99 +604,348 @@ public class PurpleSignal implements ReceiveMessageHandler, Runnable {
 			if (source == null) {
 				logNatively(DEBUG_LEVEL_INFO, "Source is null. Ignoring message.");
 			} else if (envelope.isReceipt()) {
+				serverReceipts.increment();
 				logNatively(DEBUG_LEVEL_INFO, "Ignoring receipt.");
 			} else if (content == null) {
+				undecryptable.increment();
 				logNatively(DEBUG_LEVEL_INFO, "Failed to decrypt incoming message. Ignoring message.");
 				// handleErrorNatively(this.connection, "Failed to decrypt incoming message.");
 			} else {
 				long timestamp = envelope.getTimestamp();
-				SignalMessagePrinter.printSignalServiceContent(content);
-				if (content.getDataMessage().isPresent()) {
-					handleDataMessage(content, source);
-					// TODO: do not send receipt until handleMessageNatively returns successfully
-					try {
-						this.manager.sendReceipt(content.getSender(), content.getDataMessage().get().getTimestamp(), SignalServiceReceiptMessage.Type.READ);
-					} catch (IOException | UntrustedIdentityException e) {
-						logNatively(DEBUG_LEVEL_INFO, "Receipt was not sent successfully: " + e);
-					}
-				} else if (content.getSyncMessage().isPresent()) {
-					handleSyncMessage(content, source);
-				} else if (content.getTypingMessage().isPresent()) {
-					logNatively(DEBUG_LEVEL_INFO, "Received typing message for " + source + ". Ignoring.");
-				} else if (content.getReceiptMessage().isPresent()) {
-					String description = "[Message "+content.getReceiptMessage().get().getType().toString().toLowerCase()+".]";
-					handleMessageNatively(this.connection, source, source, description, timestamp,
-							PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG);
-				} else {
-					handleMessageNatively(this.connection, source, source, "[Received message of unknown type.]",
-							timestamp, PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG);
+				if (!this.catchingUp && this.traceLevel.includes(Trace.Level.BASIC)) {
+					SignalMessagePrinter.printSignalServiceContent(content, this.traceLevel);
 				}
-				// TODO: support all message types
+				handleContent(content.getSender(), content.getDataMessage(), content.getSyncMessage(),
+						content.getTypingMessage(), content.getReceiptMessage(), source, timestamp);
 			}
 		}
+		checkSliceBudget();
+	}
+
+	/**
+	 * What handleMessage does with an envelope which has been decrypted. The load test injects messages here since
+	 * SignalServiceContent cannot be created outside of signal-service.
+	 */
+	void handleDecryptedEnvelope(SignalServiceAddress sender, Optional<SignalServiceDataMessage> dataMessage,
+			Optional<SignalServiceSyncMessage> syncMessage, Optional<SignalServiceTypingMessage> typingMessage,
+			Optional<SignalServiceReceiptMessage> receiptMessage, String source, long timestamp) {
+		envelopeArrived();
+		handleContent(sender, dataMessage, syncMessage, typingMessage, receiptMessage, source, timestamp);
+		checkSliceBudget();
+	}
+
+	private void envelopeArrived() {
+		if (!this.firstEnvelopeReceived) {
+			this.firstEnvelopeReceived = true;
+			logNatively(DEBUG_LEVEL_INFO,
+					"Start-up timing: first envelope " + (System.currentTimeMillis() - this.connectStart) + " ms after connecting.");
+		}
+		this.lastActivity = System.nanoTime();
+		this.sliceEnvelopes++;
+		if (this.catchingUp) {
+			this.caughtUpEnvelopes++;
+		} else {
+			logNatively(DEBUG_LEVEL_INFO, "RECEIVED SOMETHING!");
+		}
+	}
+
+	/**
+	 * Dispatches decrypted content by type.
+	 * 
+	 * The handlers for the individual types take the message parts rather than the content so they can be fed
+	 * directly by benchmarks.
+	 */
+	private void handleContent(SignalServiceAddress sender, Optional<SignalServiceDataMessage> dataMessage,
+			Optional<SignalServiceSyncMessage> syncMessage, Optional<SignalServiceTypingMessage> typingMessage,
+			Optional<SignalServiceReceiptMessage> receiptMessage, String source, long timestamp) {
+		if (isDuplicate(dataMessage, syncMessage, source)) {
+			duplicates.increment();
+			logNatively(DEBUG_LEVEL_INFO, "Ignoring duplicate of message " + timestamp + " from " + source + ".");
+		} else if (dataMessage.isPresent()) {
+			dataMessages.increment();
+			handleDataMessage(dataMessage.get(), sender, source);
+		} else if (syncMessage.isPresent()) {
+			syncMessages.increment();
+			handleSyncMessage(syncMessage.get(), source);
+		} else if (typingMessage.isPresent()) {
+			typingMessages.increment();
+			handleTypingMessage(typingMessage.get(), source);
+		} else if (receiptMessage.isPresent()) {
+			receiptMessages.increment();
+			handleReceiptMessage(receiptMessage.get(), source, timestamp);
+		} else {
+			unknownMessages.increment();
+			batcher.add(source, source, "[Received message of unknown type.]",
+					timestamp, PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG);
+		}
+		// TODO: support all message types
+	}
+
+	/**
+	 * Messages may be delivered more than once, e.g. after a re-connect. Messages sent by this account on another
+	 * device may arrive as data message and as sent transcript. Both are identified by author and timestamp.
+	 */
+	private boolean isDuplicate(Optional<SignalServiceDataMessage> dataMessage,
+			Optional<SignalServiceSyncMessage> syncMessage, String source) {
+		if (dataMessage.isPresent()) {
+			return !this.duplicateFilter.add(source, dataMessage.get().getTimestamp());
+		}
+		if (syncMessage.isPresent() && syncMessage.get().getSent().isPresent()) {
+			return !this.duplicateFilter.add(this.username, syncMessage.get().getSent().get().getTimestamp());
+		}
+		return false;
+	}
+
+	void handleTypingMessage(SignalServiceTypingMessage typingMessage, String source) {
+		String chat = source;
+		if (typingMessage.getGroupId().isPresent()) {
+			chat = this.groupIdCache.getChat(typingMessage.getGroupId().get());
+		}
+		statusThrottle.typing(chat, typingMessage.isTypingStarted());
+	}
+
+	void handleReceiptMessage(SignalServiceReceiptMessage receiptMessage, String source, long timestamp) {
+		int type;
+		if (receiptMessage.isReadReceipt()) {
+			type = StatusThrottle.RECEIPT_READ;
+		} else if (receiptMessage.isDeliveryReceipt()) {
+			type = StatusThrottle.RECEIPT_DELIVERY;
+		} else {
+			return;
+		}
+		long latest = timestamp;
+		if (!receiptMessage.getTimestamps().isEmpty()) {
+			latest = Collections.max(receiptMessage.getTimestamps()); // the messages the receipt is about
+		}
+		statusThrottle.receipt(source, type, latest);
 	}
 
-	private void handleSyncMessage(SignalServiceContent content, String sender) {
-		SignalServiceSyncMessage syncMessage = content.getSyncMessage().get();
+	void handleSyncMessage(SignalServiceSyncMessage syncMessage, String sender) {
 		if (syncMessage.getSent().isPresent() && syncMessage.getSent().get().getMessage().getBody().isPresent()) {
 			SentTranscriptMessage sentTranscriptMessage = syncMessage.getSent().get();
 			String chat = sender;
 			SignalServiceDataMessage dataMessage = sentTranscriptMessage.getMessage();
-			if (dataMessage.getGroupContext().isPresent()
-					&& dataMessage.getGroupContext().get().getGroupV1().isPresent()) {
-				SignalServiceGroup groupInfo = dataMessage.getGroupContext().get().getGroupV1().get();
-				chat = Base64.encodeBytes(groupInfo.getGroupId());
+			String message = dataMessage.getBody().get();
+			long timestamp = dataMessage.getTimestamp();
+			if (dataMessage.getGroupContext().isPresent()) {
+				chat = getGroupChat(dataMessage.getGroupContext().get(), chat, timestamp);
 			} else {
 				chat = sentTranscriptMessage.getDestination().get().getNumber().get();
 			}
-			String message = dataMessage.getBody().get();
-			long timestamp = dataMessage.getTimestamp();
-			handleMessageNatively(this.connection, chat, this.username, message, timestamp,
-					PURPLE_MESSAGE_SEND | PURPLE_MESSAGE_REMOTE_SEND | PURPLE_MESSAGE_DELAYED
+			int flags = PURPLE_MESSAGE_SEND | PURPLE_MESSAGE_REMOTE_SEND | PURPLE_MESSAGE_DELAYED;
 			// flags copied from EionRobb/purple-discord/blob/master/libdiscord.c
-			);
+			batcher.add(chat, this.username, message, timestamp, flags);
+			storeMessage(chat, this.username, message, timestamp, flags);
+		} else if (syncMessage.getContacts().isPresent()) {
+			ContactsMessage contacts = syncMessage.getContacts().get();
+			syncRoster(RosterSync.CONTACTS, contacts.getContactsStream(), contacts.isComplete());
+		} else if (syncMessage.getGroups().isPresent()) {
+			syncRoster(RosterSync.GROUPS, syncMessage.getGroups().get(), true);
 		} else {
-			handleMessageNatively(this.connection, sender, sender, "[Received sync message without body.]", 0,
+			batcher.add(sender, sender, "[Received sync message without body.]", 0,
 					PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG);
 		}
 	}
 
-	private void handleDataMessage(SignalServiceContent content, String source) {
-		SignalServiceDataMessage dataMessage = content.getDataMessage().get();
+	/**
+	 * Reads the contacts or groups sent by the primary device. Large rosters come as an attachment, which is downloaded
+	 * and read in the background.
+	 */
+	private void syncRoster(String list, SignalServiceAttachment attachment, boolean complete) {
+		if (attachment.isStream()) {
+			try {
+				readRoster(list, attachment.asStream().getInputStream(), complete);
+			} catch (IOException e) {
+				logNatively(DEBUG_LEVEL_INFO, "Unable to synchronize roster: " + e);
+			}
+			return;
+		}
+		this.attachmentDownloader.download(attachment.asPointer()).whenComplete((file, error) -> {
+			if (error != null) {
+				logNatively(DEBUG_LEVEL_INFO, "Unable to download roster: " + error);
+				return;
+			}
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+				readRoster(list, in, complete);
+			} catch (IOException e) {
+				logNatively(DEBUG_LEVEL_INFO, "Unable to synchronize roster: " + e);
+			} finally {
+				file.delete(); // not meant for the user
+			}
+		});
+	}
+
+	private void readRoster(String list, InputStream in, boolean complete) throws IOException {
+		Map<String, String> roster = new HashMap<>();
+		if (RosterSync.CONTACTS.equals(list)) {
+			DeviceContactsInputStream contacts = new DeviceContactsInputStream(in);
+			for (DeviceContact contact = contacts.read(); contact != null; contact = contacts.read()) {
+				skipAvatar(contact.getAvatar());
+				if (contact.getAddress().getNumber().isPresent()) { // chats are named by number
+					roster.put(contact.getAddress().getNumber().get(), contact.getName().or(""));
+				}
+			}
+		} else {
+			DeviceGroupsInputStream groups = new DeviceGroupsInputStream(in);
+			for (DeviceGroup group = groups.read(); group != null; group = groups.read()) {
+				skipAvatar(group.getAvatar());
+				if (group.isActive()) {
+					roster.put(this.groupIdCache.getChat(group.getId()), group.getName().or(""));
+				}
+			}
+		}
+		int changes = this.rosterSync.update(list, roster, complete);
+		logNatively(DEBUG_LEVEL_INFO, "Synchronized " + roster.size() + " entries of " + list + ", " + changes
+				+ " changed.");
+	}
+
+	/**
+	 * Avatars are embedded in the roster stream. The next entry can only be read once the avatar has been consumed.
+	 */
+	private static void skipAvatar(Optional<SignalServiceAttachmentStream> avatar) throws IOException {
+		if (!avatar.isPresent()) {
+			return;
+		}
+		InputStream in = avatar.get().getInputStream();
+		byte[] buffer = new byte[8192];
+		long remaining = avatar.get().getLength();
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0) {
+				throw new EOFException("Roster ended within an avatar.");
+			}
+			remaining -= read;
+		}
+	}
+
+	void handleDataMessage(SignalServiceDataMessage dataMessage, SignalServiceAddress sender, String source) {
+		// the receipt is sent after the message has been handed over to libpurple
+		long receiptTimestamp = dataMessage.getTimestamp();
+		Runnable onDelivered = () -> this.receiptSender.add(sender, receiptTimestamp);
 		String chat = source;
-		if (dataMessage.getGroupContext().isPresent() && dataMessage.getGroupContext().get().getGroupV1().isPresent()) {
-			SignalServiceGroup groupInfo = dataMessage.getGroupContext().get().getGroupV1().get();
-			chat = Base64.encodeBytes(groupInfo.getGroupId());
+		if (dataMessage.getGroupContext().isPresent()) {
+			chat = getGroupChat(dataMessage.getGroupContext().get(), chat, dataMessage.getTimestamp());
 		}
+		boolean hasAttachments = dataMessage.getAttachments().isPresent() && !dataMessage.getAttachments().get().isEmpty();
 		if (dataMessage.getBody().isPresent()) {
 			String message = dataMessage.getBody().get();
 			long timestamp = dataMessage.getTimestamp();
-			handleMessageNatively(this.connection, chat, source, message, timestamp, PURPLE_MESSAGE_RECV);
+			batcher.add(chat, source, message, timestamp, PURPLE_MESSAGE_RECV, onDelivered);
+			storeMessage(chat, source, message, timestamp, PURPLE_MESSAGE_RECV);
+		} else if (hasAttachments) {
+			onDelivered.run(); // the attachments arrive later, the message itself has been received
 		} else {
-			handleMessageNatively(this.connection, chat, source, "[Received data message without body.]", 0,
-					PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG);
+			batcher.add(chat, source, "[Received data message without body.]", 0,
+					PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG, onDelivered);
+		}
+		if (hasAttachments) {
+			for (SignalServiceAttachment attachment : dataMessage.getAttachments().get()) {
+				if (attachment.isPointer()) {
+					downloadAttachment(attachment.asPointer(), chat, source, dataMessage.getTimestamp());
+				}
+			}
 		}
 	}
 
-	int sendMessage(String who, String message) {
-		if (this.manager != null) {
+	/**
+	 * Determines the chat a group message belongs to.
+	 * 
+	 * Messages to V2 groups stay in the fallback chat, as do the changes to the group. Sending to a V2 group is not
+	 * supported yet: replies from a group chat would be sent as V1 group message, which does not reach the group.
+	 *
+	 * @return the fallback if the group cannot be identified
+	 */
+	private String getGroupChat(SignalServiceGroupContext groupContext, String fallback, long timestamp) {
+		if (groupContext.getGroupV1().isPresent()) {
+			SignalServiceGroup groupInfo = groupContext.getGroupV1().get();
+			return this.groupIdCache.getChat(groupInfo.getGroupId());
+		}
+		if (groupContext.getGroupV2().isPresent()) {
+			List<String> events = new ArrayList<>();
 			try {
-				if (who.startsWith("+")) {
-					this.manager.sendMessage(message, null, Arrays.asList(who)); // https://stackoverflow.com/questions/20358883/
-				} else {
-					byte[] groupId = Util.decodeGroupId(who);
-					this.manager.sendGroupMessage(message, null, groupId);
+				this.groupV2Cache.update(groupContext.getGroupV2().get(), events);
+				for (String event : events) {
+					batcher.add(fallback, fallback, event, timestamp, PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG);
 				}
-				return 1;
-			} catch (IOException | AttachmentInvalidException | EncapsulatedExceptions | InvalidNumberException
-					| GroupIdFormatException | GroupNotFoundException | NotAGroupMemberException e) {
-				e.printStackTrace();
-				handleErrorNatively(this.connection, "Exception while sending message: " + e.getMessage());
+			} catch (InvalidInputException e) {
+				logNatively(DEBUG_LEVEL_INFO, "Invalid group master key: " + e);
 			}
 		}
+		return fallback;
+	}
+
+	/**
+	 * Downloads the attachment in the background. A link to it is shown once it is on disk. It goes through the batcher
+	 * like every message, so it cannot overtake the message it came with.
+	 */
+	private void downloadAttachment(SignalServiceAttachmentPointer pointer, String chat, String sender,
+			long timestamp) {
+		this.attachmentDownloader.download(pointer).whenComplete((file, error) -> {
+			if (error == null) {
+				batcher.add(chat, sender, "[Attachment: " + link(file) + "]", timestamp, PURPLE_MESSAGE_RECV);
+			} else {
+				batcher.add(chat, sender, "[Attachment could not be downloaded: " + error.getMessage() + "]", timestamp,
+						PURPLE_MESSAGE_SYSTEM | PURPLE_MESSAGE_NO_LOG);
+			}
+		});
+	}
+
+	private static String link(File file) {
+		return "<a href=\"" + escapeMarkup(file.toPath().toUri().toASCIIString()) + "\">"
+				+ escapeMarkup(file.getName()) + "</a>";
+	}
+
+	private static String escapeMarkup(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * Queues a message for sending. Returns immediately.
+	 * The outcome is reported via handleSendResultNatively.
+	 */
+	int sendMessage(String who, String message) {
+		if ((this.manager != null || !this.sendsThroughManager) && this.sendPipeline.submit(who, message)) {
+			return 1;
+		}
 		return 0;
 	}
 
+	/**
+	 * Resolves the chat once for all messages sent to it: a number becomes the recipient list, a group chat name is
+	 * decoded to its group ID.
+	 */
+	private SendPipeline.Recipient resolveRecipient(String who) throws GroupIdFormatException {
+		if (who.startsWith("+")) {
+			List<String> recipients = Arrays.asList(who); // https://stackoverflow.com/questions/20358883/
+			return message -> {
+				connectedManager().sendMessage(message, null, recipients);
+				storeMessage(who, this.username, message, System.currentTimeMillis(), PURPLE_MESSAGE_SEND);
+			};
+		}
+		byte[] groupId = this.groupIdCache.getGroupId(who);
+		return message -> {
+			connectedManager().sendGroupMessage(message, null, groupId);
+			storeMessage(who, this.username, message, System.currentTimeMillis(), PURPLE_MESSAGE_SEND);
+		};
+	}
+
+	/**
+	 * Keeps the message in the local history if the account has it enabled.
+	 */
+	private void storeMessage(String chat, String sender, String message, long timestamp, int flags) {
+		if (this.messageStore != null) {
+			this.messageStore.append(chat, sender, message, timestamp, flags);
+		}
+	}
+
+	private Manager connectedManager() throws IOException {
+		Manager m = this.manager;
+		if (m == null) {
+			throw new IOException("Not connected.");
+		}
+		return m;
+	}
+
 	static {
 		System.loadLibrary("purple-signal"); // will implicitly look for libpurple-signal.so on Linux and
 												// purple-signal.dll on Windows
@@ -317,8 +963,22 @@ public class PurpleSignal implements ReceiveMessageHandler, Runnable {
 
 	public static native void logNatively(int level, String text);
 
-	public static native void handleMessageNatively(long connection, String chat, String sender, String content,
-			long timestamp, int flags);
+	/**
+	 * @param buffer direct buffer with a batch of messages as written by {@link MessageBatcher}
+	 */
+	public static native void handleMessageBufferNatively(long connection, ByteBuffer buffer, int length);
+
+	/**
+	 * Hands over roster changes encoded by {@link RosterSync}. The plug-in calls {@link #handleRosterApplied(long)} with
+	 * the generation once they have been applied.
+	 */
+	public static native void updateRosterNatively(long connection, ByteBuffer buffer, int length, long generation);
+
+	public static native void handleTypingNatively(long connection, String chat, boolean typing);
+
+	public static native void handleReceiptNatively(long connection, String chat, int type, long timestamp);
+
+	public static native void handleSendResultNatively(long connection, String who, boolean success, String error);
 
 	public static native void handleErrorNatively(long connection, String error);
 
@@ -330,10 +990,15 @@ public class PurpleSignal implements ReceiveMessageHandler, Runnable {
 	
 	public static native String getSettingsStringNatively(long connection, String key, String defaultValue);
 	
+	public static native boolean getSettingsBooleanNatively(long connection, String key, boolean defaultValue);
+	
 	public static native void setSettingsStringNatively(long connection, String key, String value);
 	
 	public static long lookupUsername(String username) throws IOException {
-		long connection = lookupUsernameNatively(username);
+		long connection = ConnectionRegistry.lookup(username);
+		if (connection == 0) {
+			connection = lookupUsernameNatively(username);
+		}
 		if (connection == 0) {
 			throw new IOException("No connection exists for this username.");
 		}
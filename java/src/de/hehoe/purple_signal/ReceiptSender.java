@@ -0,0 +1,119 @@
+package de.hehoe.purple_signal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+/**
+ * Sends read receipts in the background so the receiver does not wait for the network.
+ *
+ * Receipts are collected per recipient for a short while and then sent together on the {@link ConnectionRegistry}'s
+ * shared pool, one batch at a time. While paused (e.g. during catch-up), receipts are only collected.
+ */
+public class ReceiptSender {
+
+	static final long FLUSH_WINDOW_MILLIS = 500;
+
+	public interface Transport {
+		void send(SignalServiceAddress recipient, List<Long> timestamps) throws IOException, UntrustedIdentityException;
+	}
+
+	private static class PendingReceipts {
+		final SignalServiceAddress recipient;
+		final List<Long> timestamps = new ArrayList<>();
+
+		PendingReceipts(SignalServiceAddress recipient) {
+			this.recipient = recipient;
+		}
+	}
+
+	private final Transport transport;
+	private Map<String, PendingReceipts> pending = new LinkedHashMap<>();
+	private boolean paused = false;
+	private boolean keepSending = false;
+	private boolean scheduled = false; // a batch is about to be sent or being sent
+	private final Metrics.Histogram sendLatency;
+	private final LongAdder failures;
+
+	public ReceiptSender(Transport transport, Metrics metrics) {
+		this.transport = transport;
+		this.sendLatency = metrics.histogram("receipts.latency");
+		this.failures = metrics.counter("receipts.failures");
+		metrics.gauge("receipts.pending", this::getPendingCount);
+	}
+
+	public synchronized void start() {
+		keepSending = true;
+		scheduleIfPending();
+	}
+
+	/**
+	 * Stops sending. Receipts still pending are dropped. Called on libpurple's main thread, so it does not wait for a
+	 * send in flight.
+	 */
+	public synchronized void stop() {
+		keepSending = false;
+		paused = false;
+		pending.clear();
+	}
+
+	/**
+	 * @return number of recipients with receipts waiting to be sent
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public synchronized void setPaused(boolean paused) {
+		this.paused = paused;
+		scheduleIfPending();
+	}
+
+	public synchronized void add(SignalServiceAddress recipient, long timestamp) {
+		pending.computeIfAbsent(recipient.getIdentifier(), identifier -> new PendingReceipts(recipient)).timestamps
+				.add(timestamp);
+		scheduleIfPending();
+	}
+
+	/**
+	 * Sends the receipts collected after the window. Must hold the lock.
+	 */
+	private void scheduleIfPending() {
+		if (keepSending && !paused && !scheduled && !pending.isEmpty()) {
+			scheduled = true;
+			ConnectionRegistry.schedule(() -> ConnectionRegistry.execute(this::send), FLUSH_WINDOW_MILLIS);
+		}
+	}
+
+	private void send() {
+		Map<String, PendingReceipts> receipts;
+		synchronized (this) {
+			if (!keepSending || paused) {
+				scheduled = false; // scheduled again once resumed
+				return;
+			}
+			receipts = pending;
+			pending = new LinkedHashMap<>();
+		}
+		for (PendingReceipts receipt : receipts.values()) {
+			long start = System.nanoTime();
+			try {
+				transport.send(receipt.recipient, receipt.timestamps);
+				sendLatency.recordNanos(System.nanoTime() - start);
+			} catch (IOException | UntrustedIdentityException e) {
+				failures.increment();
+				PurpleSignal.logNatively(PurpleSignal.DEBUG_LEVEL_INFO, "Receipt was not sent successfully: " + e);
+			}
+		}
+		synchronized (this) {
+			scheduled = false;
+			scheduleIfPending(); // collected while sending
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package de.hehoe.purple_signal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps libpurple's buddy list in line with the contacts and groups synchronized from the primary device.
+ *
+ * A new roster is compared against the last one handed over and only entries which have been added, renamed or removed
+ * are handed over, all of them in one call. An unchanged roster of thousands of contacts costs no work in the UI.
+ *
+ * The roster is kept in a snapshot on disk, but only once libpurple has confirmed that the changes have been applied.
+ * Changes lost on the way, e.g. because the connection has been closed meanwhile, are handed over again next time.
+ */
+public class RosterSync {
+
+	// buddy list groups
+	public static final String CONTACTS = "Signal";
+	public static final String GROUPS = "Signal Groups";
+
+	static final int ACTION_REMOVE = 0;
+	static final int ACTION_SET = 1;
+	static final int SNAPSHOT_VERSION = 1;
+
+	private static class Change {
+		final int action;
+		final String list;
+		final String id;
+		final String alias;
+
+		Change(int action, String list, String id, String alias) {
+			this.action = action;
+			this.list = list;
+			this.id = id;
+			this.alias = alias;
+		}
+	}
+
+	private final long connection;
+	private final File snapshotFile;
+	private Map<String, Map<String, String>> snapshot = null; // list → id → alias, loaded on first use
+	private long generation = 0; // of the last hand-over
+	private final LongAdder handedOver;
+	private final LongAdder unchanged;
+
+	public RosterSync(long connection, File snapshotFile, Metrics metrics) {
+		this.connection = connection;
+		this.snapshotFile = snapshotFile;
+		this.handedOver = metrics.counter("roster.changes");
+		this.unchanged = metrics.counter("roster.unchanged");
+	}
+
+	/**
+	 * Updates the entries of a buddy list group.
+	 *
+	 * @param roster id → alias, the alias may be empty
+	 * @param complete whether entries not in the roster are to be removed
+	 * @return number of changes handed over
+	 */
+	public synchronized int update(String list, Map<String, String> roster, boolean complete) {
+		if (snapshot == null) {
+			snapshot = load();
+		}
+		Map<String, String> previous = snapshot.getOrDefault(list, new HashMap<>());
+		List<Change> changes = new ArrayList<>();
+		for (Map.Entry<String, String> entry : roster.entrySet()) {
+			if (!Objects.equals(previous.get(entry.getKey()), entry.getValue())) {
+				changes.add(new Change(ACTION_SET, list, entry.getKey(), entry.getValue()));
+			}
+		}
+		int changed = changes.size();
+		if (complete) {
+			for (String id : previous.keySet()) {
+				if (!roster.containsKey(id)) {
+					changes.add(new Change(ACTION_REMOVE, list, id, ""));
+				}
+			}
+		}
+		unchanged.add(roster.size() - changed);
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		handOver(changes, ++generation);
+		handedOver.add(changes.size());
+		Map<String, String> next = new HashMap<>(complete ? roster : previous);
+		if (!complete) {
+			next.putAll(roster);
+		}
+		snapshot.put(list, next);
+		return changes.size();
+	}
+
+	/**
+	 * Called on libpurple's main thread once the changes of a hand-over have been applied. The snapshot is written in
+	 * the background.
+	 */
+	public void confirm(long confirmed) {
+		ConnectionRegistry.execute(() -> {
+			try {
+				save(confirmed);
+			} catch (IOException e) {
+				PurpleSignal.logNatively(PurpleSignal.DEBUG_LEVEL_INFO, "Unable to save roster snapshot: " + e);
+			}
+		});
+	}
+
+	/**
+	 * Encodes the changes like {@link MessageBatcher} does: a count, then per change the action and three strings.
+	 */
+	private void handOver(List<Change> changes, long generation) {
+		int size = 4;
+		for (Change change : changes) {
+			size += 4 + 3 * 4 + MessageBatcher.MAX_UTF8_BYTES_PER_CHAR
+					* (change.list.length() + change.id.length() + change.alias.length());
+		}
+		ByteBuffer buffer = DirectBufferPool.acquire(size);
+		try {
+			buffer.putInt(changes.size());
+			for (Change change : changes) {
+				buffer.putInt(change.action);
+				MessageBatcher.putString(buffer, change.list);
+				MessageBatcher.putString(buffer, change.id);
+				MessageBatcher.putString(buffer, change.alias);
+			}
+			PurpleSignal.updateRosterNatively(this.connection, buffer, buffer.position(), generation);
+		} finally {
+			DirectBufferPool.release(buffer);
+		}
+	}
+
+	private Map<String, Map<String, String>> load() {
+		Map<String, Map<String, String>> lists = new HashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+			if (in.readInt() != SNAPSHOT_VERSION) {
+				return lists;
+			}
+			int listCount = in.readInt();
+			for (int l = 0; l < listCount; l++) {
+				String list = in.readUTF();
+				int count = in.readInt();
+				Map<String, String> entries = new HashMap<>(count * 2);
+				for (int i = 0; i < count; i++) {
+					String id = in.readUTF();
+					entries.put(id, in.readUTF());
+				}
+				lists.put(list, entries);
+			}
+		} catch (FileNotFoundException e) {
+			// first synchronization
+		} catch (EOFException e) {
+			lists.clear(); // truncated, everything is handed over again
+		} catch (IOException e) {
+			PurpleSignal.logNatively(PurpleSignal.DEBUG_LEVEL_INFO, "Roster snapshot is not readable: " + e);
+			lists.clear();
+		}
+		return lists;
+	}
+
+	/**
+	 * Writes a new snapshot next to the old one and replaces it, so a crash leaves either of them.
+	 *
+	 * Hand-overs are applied in order. If there has been another one meanwhile, the snapshot already contains its
+	 * changes and is saved once that one is confirmed.
+	 */
+	private synchronized void save(long confirmed) throws IOException {
+		if (confirmed != generation) {
+			return;
+		}
+		File directory = snapshotFile.getParentFile();
+		if (directory != null) {
+			directory.mkdirs();
+		}
+		File temporary = new File(snapshotFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, Map<String, String>> list : snapshot.entrySet()) {
+				out.writeUTF(list.getKey());
+				out.writeInt(list.getValue().size());
+				for (Map.Entry<String, String> entry : list.getValue().entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeUTF(entry.getValue());
+				}
+			}
+		}
+		Files.move(temporary.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
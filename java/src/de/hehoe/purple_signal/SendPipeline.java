@@ -0,0 +1,192 @@
+package de.hehoe.purple_signal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends outgoing messages on the {@link ConnectionRegistry}'s shared pool so libpurple's main thread does not wait for
+ * the network.
+ *
+ * Messages to the same conversation are sent one after another in the order they were submitted, each as a message
+ * of its own. Different conversations are served in parallel, so several sends are in flight at a time. Each worker
+ * sends one message and then yields so a long queue in one conversation does not starve the others. The recipient is
+ * resolved once per conversation and kept for later sends.
+ *
+ * Optionally, bursts are coalesced: the first message to a conversation waits up to a maximum delay for others to
+ * follow, and a worker then takes the messages queued for the conversation as a batch and sends them back to back.
+ */
+public class SendPipeline {
+
+	static final String SETTING_KEY = "send-coalescing-delay"; // in milliseconds, 0 disables coalescing
+	static final int MAX_BATCH_SIZE = 32; // while coalescing
+	static final int REMEMBERED_RECIPIENTS = 256;
+
+	public interface Transport {
+		/**
+		 * Looks up what it takes to send to the conversation, e.g. the recipient's address or the group ID.
+		 */
+		Recipient resolve(String who) throws Exception;
+	}
+
+	public interface Recipient {
+		void send(String message) throws Exception;
+	}
+
+	private static class Conversation {
+		final Deque<String> queue = new ArrayDeque<>();
+		boolean scheduled = false;
+	}
+
+	private final long connection;
+	private final Transport transport;
+	private final Map<String, Conversation> conversations = new HashMap<>();
+	private final LruCache<String, Recipient> recipients = new LruCache<>(REMEMBERED_RECIPIENTS);
+	private int pendingCount = 0; // guarded by conversations
+	private boolean stopped = false; // guarded by conversations
+	private volatile long maxDelayMillis = 0;
+	private final Metrics.Histogram sendLatency;
+	private final LongAdder failures;
+	private final LongAdder batched;
+
+	public SendPipeline(long connection, Transport transport, Metrics metrics) {
+		this.connection = connection;
+		this.transport = transport;
+		this.sendLatency = metrics.histogram("send.latency");
+		this.failures = metrics.counter("send.failures");
+		this.batched = metrics.counter("send.batched");
+		metrics.gauge("send.pending", this::getPendingCount);
+	}
+
+	/**
+	 * @param maxDelayMillis how long a message may wait for others to coalesce with, 0 disables coalescing
+	 */
+	public void setMaxDelayMillis(long maxDelayMillis) {
+		this.maxDelayMillis = Math.max(0, maxDelayMillis);
+	}
+
+	/**
+	 * Reads the maximum delay from the connection's account settings.
+	 */
+	public void configure() {
+		String value = PurpleSignal.getSettingsStringNatively(this.connection, SETTING_KEY, "0");
+		try {
+			setMaxDelayMillis(Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			setMaxDelayMillis(0);
+		}
+	}
+
+	/**
+	 * @return false if the pipeline has been stopped already
+	 */
+	public boolean submit(String who, String message) {
+		synchronized (conversations) {
+			if (stopped) {
+				return false;
+			}
+			Conversation conversation = conversations.computeIfAbsent(who, w -> new Conversation());
+			conversation.queue.add(message);
+			pendingCount++;
+			if (!conversation.scheduled) {
+				conversation.scheduled = true;
+				long delay = maxDelayMillis;
+				if (delay > 0) {
+					ConnectionRegistry.schedule(() -> ConnectionRegistry.execute(() -> sendNext(who, conversation)),
+							delay);
+				} else {
+					ConnectionRegistry.execute(() -> sendNext(who, conversation));
+				}
+			}
+			return true;
+		}
+	}
+
+	public int getPendingCount() {
+		synchronized (conversations) {
+			return pendingCount;
+		}
+	}
+
+	/**
+	 * Stops accepting messages. Messages still queued are not sent, they are reported as failed. Called on libpurple's
+	 * main thread, so it does not wait for sends in flight.
+	 */
+	public void stop() {
+		List<String> cancelled = new ArrayList<>();
+		synchronized (conversations) {
+			stopped = true;
+			for (Map.Entry<String, Conversation> conversation : conversations.entrySet()) {
+				for (int i = conversation.getValue().queue.size(); i > 0; i--) {
+					cancelled.add(conversation.getKey());
+				}
+				conversation.getValue().queue.clear();
+			}
+			pendingCount = 0;
+		}
+		for (String who : cancelled) {
+			failures.increment();
+			PurpleSignal.handleSendResultNatively(this.connection, who, false,
+					"Connection was closed before the message was sent.");
+		}
+	}
+
+	private void sendNext(String who, Conversation conversation) {
+		List<String> batch = new ArrayList<>();
+		int batchSize = maxDelayMillis > 0 ? MAX_BATCH_SIZE : 1;
+		synchronized (conversations) {
+			while (batch.size() < batchSize && !conversation.queue.isEmpty()) {
+				batch.add(conversation.queue.poll());
+			}
+			pendingCount -= batch.size();
+		}
+		if (!batch.isEmpty()) {
+			batched.add(batch.size() - 1);
+			send(who, batch);
+		}
+		synchronized (conversations) {
+			if (!conversation.queue.isEmpty() && !stopped) {
+				// yield to other conversations, continue later
+				ConnectionRegistry.execute(() -> sendNext(who, conversation));
+			} else {
+				conversation.scheduled = false;
+				conversations.remove(who);
+			}
+		}
+	}
+
+	private void send(String who, List<String> batch) {
+		Recipient recipient = recipients.get(who);
+		if (recipient == null) {
+			try {
+				recipient = transport.resolve(who);
+				recipients.put(who, recipient);
+			} catch (Exception e) {
+				for (int i = 0; i < batch.size(); i++) {
+					failed(who, e);
+				}
+				return;
+			}
+		}
+		for (String message : batch) {
+			long start = System.nanoTime();
+			try {
+				recipient.send(message);
+				sendLatency.recordNanos(System.nanoTime() - start);
+				PurpleSignal.handleSendResultNatively(this.connection, who, true, "");
+			} catch (Exception e) {
+				failed(who, e);
+			}
+		}
+	}
+
+	private void failed(String who, Exception e) {
+		failures.increment();
+		String error = e.getMessage() != null ? e.getMessage() : e.toString();
+		PurpleSignal.handleSendResultNatively(this.connection, who, false, error);
+	}
+}
@@ -6,219 +6,184 @@ import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroup;
-import org.whispersystems.signalservice.api.messages.SignalServiceGroup.Type;
 import org.whispersystems.signalservice.api.messages.calls.SignalServiceCallMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroupContext;
+import org.whispersystems.signalservice.api.messages.SignalServiceGroupV2;
 import org.whispersystems.signalservice.api.messages.multidevice.ReadMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SentTranscriptMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.util.Base64;
 
+/**
+ * Formats envelopes and their content into compact single-line trace records.
+ *
+ * Callers are expected to check their trace level for {@link Trace.Level#BASIC} first.
+ */
 public class SignalMessagePrinter {
 
-	final static String printPrefix = "[signal] ";
-
 	static public void printEnvelope(SignalServiceEnvelope envelope) {
-		System.out.println(printPrefix + "SignalServiceEnvelope");
-		long serverTimestamp = 0;// envelope.getServerTimestamp();
-		System.out.println(printPrefix + "  ServerTimestamp: " + serverTimestamp);
+		StringBuilder record = new StringBuilder("envelope");
+		record.append(" timestamp=").append(envelope.getTimestamp());
 		if (envelope.hasSource()) {
 			SignalServiceAddress sourceAddress = envelope.getSourceAddress();
-			System.out.println(printPrefix + "  SourceAddress:");
 			if (sourceAddress.getNumber().isPresent()) {
-				String number = sourceAddress.getNumber().get();
-				System.out.println(printPrefix + "    Number: " + number);
+				record.append(" source=").append(sourceAddress.getNumber().get());
 			}
-			// envelope.getSourceDevice();
-			// envelope.getSourceE164();
-			// envelope.getSourceIdentifier();
-			// envelope.getSourceUuid();
 		}
-		long timestamp = envelope.getTimestamp();
-		System.out.println(printPrefix + "  Timestamp: " + timestamp);
 		if (envelope.isPreKeySignalMessage()) {
-			System.out.println(printPrefix + "  isPreKeySignalMessage");
+			record.append(" preKeySignalMessage");
 		}
 		if (envelope.isReceipt()) {
-			System.out.println(printPrefix + "  isReceipt");
+			record.append(" receipt");
 		}
 		if (envelope.isSignalMessage()) {
-			System.out.println(printPrefix + "  isSignalMessage");
+			record.append(" signalMessage");
 		}
 		if (envelope.isUnidentifiedSender()) {
-			System.out.println(printPrefix + "  isUnidentifiedSender");
+			record.append(" unidentifiedSender");
 		}
+		Trace.write(record.toString());
 	}
 
-	static void printSignalServiceContent(SignalServiceContent content) {
-		System.out.println(printPrefix + "SignalServiceContent");
+	/**
+	 * @param level message bodies are included at {@link Trace.Level#VERBOSE}
+	 */
+	static void printSignalServiceContent(SignalServiceContent content, Trace.Level level) {
+		StringBuilder record = new StringBuilder("content");
+		record.append(" timestamp=").append(content.getTimestamp());
 		if (content.getCallMessage().isPresent()) {
 			SignalServiceCallMessage callMessage = content.getCallMessage().get();
-			System.out.println(printPrefix + "  CallMessage: " + callMessage.toString());
+			record.append(" call={").append(callMessage.toString()).append('}');
 		}
 		if (content.getDataMessage().isPresent()) {
-			SignalServiceDataMessage dataMessage = content.getDataMessage().get();
-			System.out.println(printPrefix + "  DataMessage");
-			if (dataMessage.getAttachments().isPresent()) {
-				List<SignalServiceAttachment> attachments = dataMessage.getAttachments().get();
-				System.out.println(printPrefix + "    Attachments.size(): " + attachments.size());
-			}
-			if (dataMessage.getBody().isPresent()) {
-				String body = dataMessage.getBody().get();
-				System.out.println(printPrefix + "    Body: \"" + body + "\"");
-			}
-			if (dataMessage.getGroupContext().isPresent()) {
-				SignalServiceGroupContext groupContext = dataMessage.getGroupContext().get();
-				printGroupContext(groupContext, printPrefix + "    ");
-			}
+			record.append(" data={");
+			appendDataMessage(record, content.getDataMessage().get(), level);
+			record.append('}');
 		}
 		if (content.getReceiptMessage().isPresent()) {
-			// SignalServiceReceiptMessage receiptMessage =
-			// content.getReceiptMessage().get();
-			System.out.println(printPrefix + "  ReceiptMessage: TODO");
+			record.append(" receipt={").append(content.getReceiptMessage().get().getType()).append('}');
 		}
-		long serverTimestamp = 0;// content.getServerTimestamp();
-		System.out.println(printPrefix + "  serverTimestamp: " + serverTimestamp);
 		if (content.getSyncMessage().isPresent()) {
-			System.out.println(printPrefix + "  SyncMessage");
-			SignalServiceSyncMessage syncMessage = content.getSyncMessage().get();
-			if (syncMessage.getBlockedList().isPresent()) {
-				System.out.println(printPrefix + "    BlockedList: TODO");
-			}
-			;
-			if (syncMessage.getConfiguration().isPresent()) {
-				System.out.println(printPrefix + "    Configuration: TODO");
-			}
-			;
-			if (syncMessage.getContacts().isPresent()) {
-				System.out.println(printPrefix + "    Contacts: TODO");
-			}
-			;
-			if (syncMessage.getFetchType().isPresent()) {
-				System.out.println(printPrefix + "    FetchType: TODO");
-			}
-			;
-			if (syncMessage.getGroups().isPresent()) {
-				System.out.println(printPrefix + "    Groups: TODO");
-			}
-			;
-			if (syncMessage.getKeys().isPresent()) {
-				System.out.println(printPrefix + "    Keys: TODO");
-			}
-			;
-			if (syncMessage.getMessageRequestResponse().isPresent()) {
-				System.out.println(printPrefix + "    MessageRequestResponse: TODO");
-			}
-			;
-			if (syncMessage.getRead().isPresent()) {
-				System.out.println(printPrefix + "    Read:");
-				List<ReadMessage> read = syncMessage.getRead().get();
-				read.forEach((readMessage) -> {
-					System.out.println(printPrefix + "      " + readMessage.toString());
-				});
-			}
-			;
-			if (syncMessage.getRequest().isPresent()) {
-				System.out.println(printPrefix + "    Request: TODO");
-			}
-			;
-			if (syncMessage.getSent().isPresent()) {
-				System.out.println(printPrefix + "    Sent:");
-				SentTranscriptMessage sent = syncMessage.getSent().get();
-				if (sent.getDestination().isPresent()) {
-					System.out.println(printPrefix + "      Destination:");
-					SignalServiceAddress destination = sent.getDestination().get();
-					String identifier = destination.getIdentifier();
-					System.out.println(printPrefix + "        Identifier: " + identifier);
-					if (destination.getNumber().isPresent()) {
-						String number = destination.getNumber().get();
-						System.out.println(printPrefix + "        Number: " + number);
-					}
-					if (destination.getRelay().isPresent()) {
-						String relay = destination.getRelay().get();
-						System.out.println(printPrefix + "        Relay: " + relay);
-					}
-				}
-				long expirationStartTimestamp = sent.getExpirationStartTimestamp();
-				if (expirationStartTimestamp > 0) {
-					System.out.println(printPrefix + "      ExpirationStartTimestamp:" + expirationStartTimestamp);
+			record.append(" sync={");
+			appendSyncMessage(record, content.getSyncMessage().get(), level);
+			record.append('}');
+		}
+		if (content.getTypingMessage().isPresent()) {
+			record.append(" typing={").append(content.getTypingMessage().get().getAction()).append('}');
+		}
+		Trace.write(record.toString());
+	}
 
-				}
-				SignalServiceDataMessage message = sent.getMessage();
-				System.out.println(printPrefix + "      Message:");
-				if (message.getAttachments().isPresent()) {
-					System.out.println("        Attachments: TODO");
-				}
-				if (message.getBody().isPresent()) {
-					String body = message.getBody().get();
-					System.out.println(printPrefix + "        Body: \"" + body + "\"");
-				}
-				int expiresInSeconds = message.getExpiresInSeconds();
-				if (expiresInSeconds > 0) {
-					System.out.println(printPrefix + "        ExpiresInSeconds: " + expiresInSeconds);
-				}
-				if (message.getGroupContext().isPresent()) {
-					SignalServiceGroupContext groupContext = message.getGroupContext().get();
-					printGroupContext(groupContext, printPrefix + "        ");
-				}
-				System.out.println(printPrefix + "        Recipients: ");
-				sent.getRecipients().forEach(serviceAdress -> {
-					System.out.println(printPrefix + "          " + serviceAdress.getNumber().get());
-				});
-				System.out.println(printPrefix + "        timestamp: " + sent.getTimestamp());
-				if (sent.isRecipientUpdate()) {
-					System.out.println(printPrefix + "        isRecipientUpdate");
-				}
-			}
-			;
-			if (syncMessage.getStickerPackOperations().isPresent()) {
-				System.out.println(printPrefix + "    StickerPackOperations: TODO");
-			}
-			;
-			if (syncMessage.getVerified().isPresent()) {
-				System.out.println(printPrefix + "    Verified: TODO");
+	private static void appendDataMessage(StringBuilder record, SignalServiceDataMessage dataMessage,
+			Trace.Level level) {
+		record.append("timestamp=").append(dataMessage.getTimestamp());
+		if (dataMessage.getAttachments().isPresent()) {
+			List<SignalServiceAttachment> attachments = dataMessage.getAttachments().get();
+			record.append(" attachments=").append(attachments.size());
+		}
+		if (dataMessage.getBody().isPresent()) {
+			String body = dataMessage.getBody().get();
+			if (level.includes(Trace.Level.VERBOSE)) {
+				record.append(" body=\"").append(body).append('"');
+			} else {
+				record.append(" body=").append(body.length()).append("chars");
 			}
-			;
-			if (syncMessage.getViewOnceOpen().isPresent()) {
-				System.out.println(printPrefix + "    ViewOnceOpen: TODO");
+		}
+		int expiresInSeconds = dataMessage.getExpiresInSeconds();
+		if (expiresInSeconds > 0) {
+			record.append(" expiresInSeconds=").append(expiresInSeconds);
+		}
+		if (dataMessage.getGroupContext().isPresent()) {
+			record.append(' ');
+			appendGroupContext(record, dataMessage.getGroupContext().get());
+		}
+	}
+
+	private static void appendSyncMessage(StringBuilder record, SignalServiceSyncMessage syncMessage,
+			Trace.Level level) {
+		// parts which are not handled (yet) are only named
+		if (syncMessage.getBlockedList().isPresent()) {
+			record.append(" blockedList");
+		}
+		if (syncMessage.getConfiguration().isPresent()) {
+			record.append(" configuration");
+		}
+		if (syncMessage.getContacts().isPresent()) {
+			record.append(" contacts={complete=").append(syncMessage.getContacts().get().isComplete());
+			record.append(syncMessage.getContacts().get().getContactsStream().isPointer() ? " pointer}" : " stream}");
+		}
+		if (syncMessage.getFetchType().isPresent()) {
+			record.append(" fetchType");
+		}
+		if (syncMessage.getGroups().isPresent()) {
+			record.append(syncMessage.getGroups().get().isPointer() ? " groups={pointer}" : " groups={stream}");
+		}
+		if (syncMessage.getKeys().isPresent()) {
+			record.append(" keys");
+		}
+		if (syncMessage.getMessageRequestResponse().isPresent()) {
+			record.append(" messageRequestResponse");
+		}
+		if (syncMessage.getRead().isPresent()) {
+			record.append(" read=[");
+			for (ReadMessage readMessage : syncMessage.getRead().get()) {
+				record.append(readMessage.getTimestamp()).append(' ');
 			}
-			;
+			record.append(']');
 		}
-		long timestamp = content.getTimestamp();
-		System.out.println(printPrefix + "  timestamp: " + timestamp);
-		if (content.getTypingMessage().isPresent()) {
-			// SignalServiceTypingMessage typingMessage = content.getTypingMessage().get();
-			System.out.println(printPrefix + "  TypingMessage: TODO");
+		if (syncMessage.getRequest().isPresent()) {
+			record.append(" request");
+		}
+		if (syncMessage.getSent().isPresent()) {
+			SentTranscriptMessage sent = syncMessage.getSent().get();
+			record.append(" sent={timestamp=").append(sent.getTimestamp());
+			if (sent.getDestination().isPresent()) {
+				SignalServiceAddress destination = sent.getDestination().get();
+				record.append(" destination=").append(destination.getIdentifier());
+			}
+			if (sent.getExpirationStartTimestamp() > 0) {
+				record.append(" expirationStartTimestamp=").append(sent.getExpirationStartTimestamp());
+			}
+			record.append(" recipients=").append(sent.getRecipients().size());
+			if (sent.isRecipientUpdate()) {
+				record.append(" recipientUpdate");
+			}
+			record.append(" message={");
+			appendDataMessage(record, sent.getMessage(), level);
+			record.append("}}");
+		}
+		if (syncMessage.getStickerPackOperations().isPresent()) {
+			record.append(" stickerPackOperations");
+		}
+		if (syncMessage.getVerified().isPresent()) {
+			record.append(" verified");
+		}
+		if (syncMessage.getViewOnceOpen().isPresent()) {
+			record.append(" viewOnceOpen");
 		}
 	}
 
-	static public void printGroupContext(SignalServiceGroupContext groupContext, String prefix) {
-		System.out.println(prefix + "GroupContext");
+	static public void appendGroupContext(StringBuilder record, SignalServiceGroupContext groupContext) {
 		if (groupContext.getGroupV1().isPresent()) {
 			SignalServiceGroup group = groupContext.getGroupV1().get();
-			System.out.println(prefix + "  GroupV1");
-			if (group.getAvatar().isPresent()) {
-				System.out.println(prefix + "    Avatar: TODO");
+			record.append("groupV1={id=").append(Base64.encodeBytes(group.getGroupId()));
+			record.append(" type=").append(group.getType().name());
+			if (group.getName().isPresent()) {
+				record.append(" name=\"").append(group.getName().get()).append('"');
 			}
-			byte[] groupId = group.getGroupId();
-			System.out.println(prefix + "    GroupId: " + Base64.encodeBytes(groupId));
 			if (group.getMembers().isPresent()) {
-				System.out.println(prefix + "    Members: TODO");
+				record.append(" members=").append(group.getMembers().get().size());
 			}
-			if (group.getName().isPresent()) {
-				String name = group.getName().get();
-				System.out.println(prefix + "    Name: " + name);
-			}
-			Type type = group.getType();
-			System.out.println(prefix + "    Type: " + type.name());
+			record.append('}');
 		}
 		if (groupContext.getGroupV2().isPresent()) {
-			// SignalServiceGroupV2 group = groupContext.getGroupV2().get();
-			System.out.println(prefix + "  GroupV2: TODO");
-			// group.getMasterKey();
-			// group.getRevision();
-			// group.getSignedGroupChange();
+			SignalServiceGroupV2 group = groupContext.getGroupV2().get();
+			record.append("groupV2={revision=").append(group.getRevision()); // the master key is a secret
+			if (group.getSignedGroupChange() != null) {
+				record.append(" change=").append(group.getSignedGroupChange().length).append(" bytes");
+			}
+			record.append('}');
 		}
 	}
 }
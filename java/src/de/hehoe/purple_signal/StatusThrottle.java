@@ -0,0 +1,148 @@
+package de.hehoe.purple_signal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how often typing indicators and receipts are handed over to libpurple.
+ *
+ * Updates are collected per conversation for a short window. Only the latest typing state and the most advanced
+ * receipts of each conversation are handed over, so the UI sees at most a few updates per conversation and window no
+ * matter how many arrive. Receipts which do not advance what has been shown before are dropped.
+ *
+ * Updates are handed over on the {@link ConnectionRegistry}'s scheduler, there is no thread per account.
+ */
+public class StatusThrottle {
+
+	static final long DEFAULT_WINDOW_MILLIS = 250;
+	static final int REMEMBERED_CONVERSATIONS = 1024;
+
+	// as in SignalServiceReceiptMessage.Type, ordered by progress
+	public static final int RECEIPT_DELIVERY = 1;
+	public static final int RECEIPT_READ = 2;
+
+	public interface Sink {
+		void typing(String chat, boolean typing);
+
+		void receipt(String chat, int type, long timestamp);
+	}
+
+	private static class Status {
+		Boolean typing = null; // null if unchanged
+		long delivered = 0; // latest timestamp per receipt type
+		long read = 0;
+	}
+
+	private final Sink sink;
+	private final long windowMillis;
+	private Map<String, Status> pending = new LinkedHashMap<>();
+	private final LruCache<String, Status> shown = new LruCache<>(REMEMBERED_CONVERSATIONS); // used by handOver only
+	private boolean keepThrottling = false;
+	private final LongAdder received;
+	private final LongAdder handedOver;
+
+	public StatusThrottle(Sink sink, Metrics metrics) {
+		this(sink, metrics, DEFAULT_WINDOW_MILLIS);
+	}
+
+	public StatusThrottle(Sink sink, Metrics metrics, long windowMillis) {
+		this.sink = sink;
+		this.windowMillis = windowMillis;
+		this.received = metrics.counter("status.received");
+		this.handedOver = metrics.counter("status.handedOver");
+		metrics.gauge("status.pending", this::getPendingCount);
+	}
+
+	public synchronized void start() {
+		if (!keepThrottling) {
+			keepThrottling = true;
+			if (!pending.isEmpty()) {
+				ConnectionRegistry.schedule(this::handOver, windowMillis);
+			}
+		}
+	}
+
+	/**
+	 * Stops throttling. Pending updates are discarded, they are of no use any more.
+	 */
+	public synchronized void stop() {
+		keepThrottling = false;
+		pending.clear();
+	}
+
+	/**
+	 * @return number of conversations with updates waiting to be handed over
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public synchronized void typing(String chat, boolean typing) {
+		received.increment();
+		status(chat).typing = typing;
+	}
+
+	public synchronized void receipt(String chat, int type, long timestamp) {
+		received.increment();
+		Status status = status(chat);
+		if (type == RECEIPT_READ) {
+			status.read = Math.max(status.read, timestamp);
+		} else if (type == RECEIPT_DELIVERY) {
+			status.delivered = Math.max(status.delivered, timestamp);
+		}
+	}
+
+	private Status status(String chat) {
+		Status status = pending.get(chat);
+		if (status == null) {
+			status = new Status();
+			pending.put(chat, status);
+			if (pending.size() == 1 && keepThrottling) {
+				ConnectionRegistry.schedule(this::handOver, windowMillis);
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Hands over the updates collected during the window. Runs on the scheduler, one at a time.
+	 */
+	private void handOver() {
+		Map<String, Status> updates;
+		synchronized (this) {
+			if (!keepThrottling) {
+				return;
+			}
+			updates = pending;
+			pending = new LinkedHashMap<>();
+		}
+		for (Map.Entry<String, Status> update : updates.entrySet()) {
+			handOver(update.getKey(), update.getValue());
+		}
+	}
+
+	private void handOver(String chat, Status update) {
+		if (update.typing != null) {
+			sink.typing(chat, update.typing);
+			handedOver.increment();
+		}
+		Status status = shown.get(chat);
+		if (status == null) {
+			status = new Status();
+			shown.put(chat, status);
+		}
+		// a message which has been read has been delivered as well
+		if (update.read > status.read) {
+			status.read = update.read;
+			status.delivered = Math.max(status.delivered, update.read);
+			sink.receipt(chat, RECEIPT_READ, update.read);
+			handedOver.increment();
+		}
+		if (update.delivered > status.delivered) {
+			status.delivered = update.delivered;
+			sink.receipt(chat, RECEIPT_DELIVERY, update.delivered);
+			handedOver.increment();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package de.hehoe.purple_signal;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Level-gated trace output for debugging the message flow.
+ *
+ * Callers check {@link Level#includes(Level)} before assembling a record so nothing is allocated while tracing is
+ * off. Records are written to stdout by a background thread. If it cannot keep up, records are dropped rather than
+ * blocking the caller.
+ *
+ * The level is set per connection via the account setting {@value #SETTING_KEY}. Each connection keeps its own level,
+ * only the writer thread is shared by all connections in this VM.
+ */
+public class Trace implements Runnable {
+
+	public enum Level {
+		OFF, // nothing is traced
+		BASIC, // one record per envelope and content, without message bodies
+		VERBOSE; // includes message bodies
+
+		public boolean includes(Level required) {
+			return compareTo(required) >= 0;
+		}
+	}
+
+	static final String SETTING_KEY = "trace-level";
+	static final int QUEUE_CAPACITY = 4096;
+	static final String PREFIX = "[signal] ";
+
+	private static final BlockingQueue<String> records = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private static final LongAdder dropped = new LongAdder(); // incremented by all connections' receivers
+	private static Thread writerThread = null;
+
+	/**
+	 * Reads the trace level from the connection's account settings. Starts the writer if tracing is on.
+	 */
+	public static Level configure(long connection) {
+		String value = PurpleSignal.getSettingsStringNatively(connection, SETTING_KEY, Level.OFF.name());
+		Level configured = Level.OFF;
+		for (Level candidate : Level.values()) {
+			if (candidate.name().equalsIgnoreCase(value.trim())) {
+				configured = candidate;
+			}
+		}
+		if (configured != Level.OFF) {
+			startWriter();
+		}
+		return configured;
+	}
+
+	private static synchronized void startWriter() {
+		if (writerThread == null) {
+			writerThread = new Thread(new Trace());
+			writerThread.setName("Trace");
+			writerThread.setDaemon(true);
+			writerThread.start();
+		}
+	}
+
+	public static void write(String record) {
+		if (!records.offer(record)) {
+			dropped.increment();
+		}
+	}
+
+	public void run() {
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			while (true) {
+				String record = records.poll(1, TimeUnit.SECONDS);
+				if (record == null) {
+					continue;
+				}
+				do {
+					out.write(PREFIX);
+					out.write(record);
+					out.write('\n');
+					record = records.poll();
+				} while (record != null);
+				long droppedRecords = dropped.sumThenReset();
+				if (droppedRecords > 0) {
+					out.write(PREFIX + "dropped " + droppedRecords + " trace records\n");
+				}
+				out.flush(); // queue has been drained
+			}
+		} catch (InterruptedException | IOException e) {
+			// tracing ends here
+		}
+	}
+}